@@ -0,0 +1,115 @@
+package com.example.demo.auth;
+
+import com.example.demo.user.UserModel;
+import com.example.demo.user.UserPrincipalCache;
+import com.example.demo.user.UserRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of AuthWebFilter. Run with the gc profiler (the benchmark profile does):
+ * gc.alloc.rate.norm is the bytes allocated per call, ~0 for the matcher benchmarks.
+ * <ul>
+ *     <li>permittedPath / protectedPath: the compiled matcher on a permit-all hit and on a path that
+ *     goes on to token authentication</li>
+ *     <li>filterPermitted: the whole filter for a permit-all request, subscribed</li>
+ *     <li>filterAuthenticated: the whole filter for a bearer token that is already in the verified-token
+ *     cache, for a user already in the principal cache (the steady state of a logged-in client)</li>
+ *     <li>antPathMatcherBaseline: the stream over PERMIT_ALL_URLS with AntPathMatcher it replaced</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthWebFilterBenchmark {
+
+    private static final String PERMITTED_PATH = "/v3/api-docs/swagger-config";
+    private static final String PROTECTED_PATH = "/user-all";
+
+    private final PermitAllMatcher matcher = new PermitAllMatcher(AuthConstant.PERMIT_ALL_URLS);
+    private final AntPathMatcher antPathMatcher = new AntPathMatcher();
+
+    private AuthWebFilter filter;
+    private ServerWebExchange permittedExchange;
+    private ServerWebExchange authenticatedExchange;
+    private WebFilterChain chain;
+
+    @Setup
+    public void setUp() {
+        UserModel user = new UserModel();
+        user.setId("bench-user");
+        user.setCompanyCode("C0");
+        Mono<UserModel> found = Mono.just(user);
+        // Only findByIdAndCompanyCode is called, on the first miss
+        UserRepository userRepository = (UserRepository) Proxy.newProxyInstance(UserRepository.class.getClassLoader(),
+                new Class<?>[]{UserRepository.class}, (proxy, method, args) -> found);
+        UserPrincipalCache userPrincipalCache = new UserPrincipalCache();
+        ReflectionTestUtils.setField(userPrincipalCache, "userRepository", userRepository);
+        ReflectionTestUtils.setField(userPrincipalCache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(userPrincipalCache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(userPrincipalCache, "maxSize", 1000L);
+        userPrincipalCache.init();
+
+        JwtUtil jwtUtil = new JwtUtil(1000);
+        String token = jwtUtil.generateToken("bench-user", "C0");
+        filter = new AuthWebFilter(jwtUtil, userPrincipalCache);
+        permittedExchange = MockServerWebExchange.from(MockServerHttpRequest.get(PERMITTED_PATH));
+        authenticatedExchange = MockServerWebExchange.from(MockServerHttpRequest.get(PROTECTED_PATH)
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + token));
+        Mono<Void> done = Mono.empty();
+        chain = exchange -> done;
+        // Fill both caches
+        filterAuthenticated();
+    }
+
+    @Benchmark
+    public boolean permittedPath() {
+        return matcher.matches(PERMITTED_PATH);
+    }
+
+    @Benchmark
+    public boolean protectedPath() {
+        return matcher.matches(PROTECTED_PATH);
+    }
+
+    @Benchmark
+    public void filterPermitted() {
+        filter.filter(permittedExchange, chain).block();
+    }
+
+    @Benchmark
+    public void filterAuthenticated() {
+        filter.filter(authenticatedExchange, chain).block();
+        // Otherwise the next call takes the re-invoked path
+        authenticatedExchange.getAttributes().remove(AuthConstant.AUTH_USER);
+    }
+
+    @Benchmark
+    public boolean antPathMatcherBaseline() {
+        return AuthConstant.PERMIT_ALL_URLS.stream()
+                .anyMatch(pattern -> antPathMatcher.match(pattern, PROTECTED_PATH));
+    }
+}
@@ -0,0 +1,328 @@
+package com.example.demo.load;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.auth.JwtUtil;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.r2dbc.core.DatabaseClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.WebsocketClientSpec;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test on one machine: boots the application on a random port against an in-memory
+ * H2 (MySQL mode) instead of MySQL, opens load.clients reactor-netty WebSocket clients per endpoint and
+ * sends load.rate messages per second per endpoint from randomly picked clients.
+ * <p>
+ * Every message carries the System.nanoTime() it was sent at, and each receiving client records
+ * send-to-receive latency. After load.warmup-seconds, load.duration-seconds are measured and reported:
+ * p50/p99/p999/max delivery latency, messages sent and frames delivered per second, heap peak and GC.
+ * Clients and server share the JVM, so heap and GC include the clients.
+ * <p>
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec@load-test -Dload.clients=2000}. With
+ * load.max-p99-ms set, the run exits with status 1 when any endpoint's p99 is above it.
+ * <ul>
+ *     <li>/chat: client i is in company C(i % load.companies), each message goes to the rest of the company</li>
+ *     <li>/room: client i joins room R(i / load.room-size), each message goes to the rest of the room</li>
+ *     <li>/global: each message goes to every other client</li>
+ * </ul>
+ * With load.hot-share set (0 to 1), that share of the /chat and /room messages comes from the clients of
+ * C0 and R0, and a second row reports the latency seen by the clients of every other company or room:
+ * it should stay close to the run without the flood.
+ */
+public class ChatLoadTest {
+
+    private static final String MARKER = "sentAt";
+
+    private final String[] endpoints = System.getProperty("load.endpoints", "chat,room,global").split(",");
+    private final int clients = Integer.getInteger("load.clients", 1000);
+    private final int companies = Integer.getInteger("load.companies", 10);
+    private final int roomSize = Integer.getInteger("load.room-size", 50);
+    private final int rate = Integer.getInteger("load.rate", 1000);
+    private final int warmupSeconds = Integer.getInteger("load.warmup-seconds", 10);
+    private final int durationSeconds = Integer.getInteger("load.duration-seconds", 30);
+    private final long maxP99Millis = Long.getLong("load.max-p99-ms", 0);
+    private final double hotShare = Double.parseDouble(System.getProperty("load.hot-share", "0"));
+
+    public static void main(String[] args) throws Exception {
+        System.exit(new ChatLoadTest().run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        // Command-line arguments: default properties would lose to application.properties
+        ConfigurableApplicationContext app = new SpringApplicationBuilder(DemoApplication.class)
+                .run(
+                        "--server.port=0",
+                        "--spring.r2dbc.url=r2dbc:h2:mem:///loadtest;DB_CLOSE_DELAY=-1;MODE=MySQL",
+                        "--spring.r2dbc.username=sa",
+                        "--spring.r2dbc.password=",
+                        "--room.journal.dir=" + Files.createTempDirectory("room-journal"),
+                        // Per-message INFO logging would measure the logger, not the pipeline
+                        "--logging.level.com.example.demo=WARN",
+                        "--logging.level.org.springframework.r2dbc.core=WARN");
+        try {
+            int port = ((WebServerApplicationContext) app).getWebServer().getPort();
+            createSchema(app.getBean(DatabaseClient.class));
+            JwtUtil jwtUtil = app.getBean(JwtUtil.class);
+            ConnectionProvider connections = ConnectionProvider.newConnection();
+
+            List<EndpointLoad> loads = new ArrayList<>();
+            for (String endpoint : endpoints) {
+                EndpointLoad load = new EndpointLoad(endpoint.trim());
+                load.connect(port, jwtUtil, connections);
+                loads.add(load);
+            }
+            List<Disposable> drivers = loads.stream().map(EndpointLoad::drive).toList();
+
+            System.out.printf("Warming up for %d s: %d clients per endpoint, %d messages/s per endpoint%n",
+                    warmupSeconds, clients, rate);
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+
+            loads.forEach(EndpointLoad::reset);
+            List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+            long gcCount = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+            long gcMillis = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+            List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .toList();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            System.out.printf("Measuring for %d s%n", durationSeconds);
+            TimeUnit.SECONDS.sleep(durationSeconds);
+
+            boolean passed = true;
+            System.out.printf("%n%-8s %10s %12s %10s %10s %10s %10s%n",
+                    "endpoint", "sent/s", "delivered/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+            for (EndpointLoad load : loads) {
+                passed &= load.report();
+            }
+            long heapPeak = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+            System.out.printf("%nHeap peak %d MB, %d GCs taking %d ms in total%n", heapPeak >> 20,
+                    collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum() - gcCount,
+                    collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum() - gcMillis);
+
+            drivers.forEach(Disposable::dispose);
+            loads.forEach(EndpointLoad::close);
+            connections.dispose();
+            return passed;
+        } finally {
+            app.close();
+        }
+    }
+
+    private void createSchema(DatabaseClient databaseClient) {
+        databaseClient.sql("CREATE TABLE tb_user (company_code VARCHAR(32), id VARCHAR(64), user_name VARCHAR(100), " +
+                "password VARCHAR(100), email VARCHAR(100), authority VARCHAR(32), position_level VARCHAR(32), " +
+                "job_title VARCHAR(100), use_yn CHAR(1), created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, created_user VARCHAR(64), updated_user VARCHAR(64), " +
+                "PRIMARY KEY (company_code, id))").then().block();
+        databaseClient.sql("CREATE TABLE chat_message (id BIGINT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(64), " +
+                "content VARCHAR(255), company_code VARCHAR(32), timestamp BIGINT)").then().block();
+        databaseClient.sql("CREATE TABLE room_message (id INT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(64), " +
+                "content VARCHAR(255), room_id VARCHAR(64), company_code VARCHAR(32), timestamp BIGINT)").then().block();
+        // Client i of every endpoint logs in as user i; the password is never checked
+        databaseClient.sql("INSERT INTO tb_user (company_code, id, user_name, password, use_yn) " +
+                "SELECT 'C' || MOD(X, " + companies + "), 'u' || X, 'u' || X, '-', 'Y' " +
+                "FROM SYSTEM_RANGE(0, " + (clients - 1) + ")").then().block();
+    }
+
+    private String companyOf(int client) {
+        return "C" + (client % companies);
+    }
+
+    private String roomOf(int client) {
+        return "R" + (client / roomSize);
+    }
+
+    private static long parseSentAt(String frame) {
+        int i = frame.indexOf(MARKER);
+        if (i < 0) {
+            // ACK/NACK and other frames without a send time
+            return -1;
+        }
+        i += MARKER.length();
+        while (i < frame.length() && !Character.isDigit(frame.charAt(i))) {
+            i++;
+        }
+        long value = 0;
+        while (i < frame.length() && Character.isDigit(frame.charAt(i))) {
+            value = value * 10 + (frame.charAt(i++) - '0');
+        }
+        return value;
+    }
+
+    private final class EndpointLoad {
+
+        private final String endpoint;
+        private final List<Sinks.Many<String>> outbound = new ArrayList<>();
+        private final List<Disposable> connections = new ArrayList<>();
+        private final AtomicInteger connected = new AtomicInteger();
+        private final Recorder latency = new Recorder(TimeUnit.MINUTES.toNanos(1), 3);
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        // Clients outside the hot company or room, with load.hot-share
+        private final Recorder coldLatency = new Recorder(TimeUnit.MINUTES.toNanos(1), 3);
+        private final LongAdder coldSent = new LongAdder();
+        private final LongAdder coldDelivered = new LongAdder();
+        private volatile long measuredFrom;
+
+        private EndpointLoad(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        private void connect(int port, JwtUtil jwtUtil, ConnectionProvider connectionProvider) throws InterruptedException {
+            HttpClient httpClient = HttpClient.create(connectionProvider);
+            WebsocketClientSpec websocketSpec = WebsocketClientSpec.builder().maxFramePayloadLength(65536).build();
+            String uri = "ws://localhost:" + port + "/" + endpoint;
+            for (int i = 0; i < clients; i++) {
+                int client = i;
+                String token = jwtUtil.generateToken("u" + i, companyOf(i));
+                Sinks.Many<String> sink = Sinks.many().unicast().onBackpressureBuffer();
+                String subscribe = subscribeFrame(i);
+                if (subscribe != null) {
+                    sink.tryEmitNext(subscribe);
+                }
+                outbound.add(sink);
+                connections.add(httpClient
+                        .headers(headers -> headers.set(HttpHeaderNames.AUTHORIZATION, "Bearer " + token))
+                        .websocket(websocketSpec)
+                        .uri(uri)
+                        .handle((in, out) -> {
+                            connected.incrementAndGet();
+                            return Mono.when(
+                                    out.sendString(sink.asFlux()),
+                                    in.receive().asString().doOnNext(frame -> onFrame(client, frame)).then());
+                        })
+                        .subscribe(null, e -> System.err.printf("%s client failed: %s%n", endpoint, e.getMessage())));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (connected.get() < clients && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            System.out.printf("/%s: %d of %d clients connected%n", endpoint, connected.get(), clients);
+        }
+
+        // Sent once on connect: /chat subscribes on its first frame, /room on JOIN
+        private String subscribeFrame(int client) {
+            return switch (endpoint) {
+                case "chat" -> "{\"action\":\"RESUME\"}";
+                case "room" -> "{\"action\":\"JOIN\",\"roomId\":\"" + roomOf(client) + "\"}";
+                default -> null;
+            };
+        }
+
+        private String messageFrame(int client) {
+            long now = System.nanoTime();
+            return switch (endpoint) {
+                case "chat" -> "{\"content\":\"" + MARKER + "=" + now + "\"}";
+                case "room" -> "{\"action\":\"CHAT\",\"roomId\":\"" + roomOf(client) + "\",\"content\":\"" + MARKER + "=" + now + "\"}";
+                default -> "{\"" + MARKER + "\":" + now + "}";
+            };
+        }
+
+        // C0 for /chat, R0 for /room
+        private boolean isHot(int client) {
+            return switch (endpoint) {
+                case "chat" -> client % companies == 0;
+                case "room" -> client / roomSize == 0;
+                default -> false;
+            };
+        }
+
+        private int hotClient(ThreadLocalRandom random) {
+            return switch (endpoint) {
+                case "chat" -> random.nextInt((clients + companies - 1) / companies) * companies;
+                case "room" -> random.nextInt(Math.min(roomSize, clients));
+                default -> random.nextInt(clients);
+            };
+        }
+
+        private void onFrame(int client, String frame) {
+            long sentAt = parseSentAt(frame);
+            // Messages sent during the warmup are not measured
+            if (sentAt < measuredFrom) {
+                return;
+            }
+            long latencyNanos = Math.min(System.nanoTime() - sentAt, TimeUnit.MINUTES.toNanos(1));
+            latency.recordValue(latencyNanos);
+            delivered.increment();
+            if (hotShare > 0 && !isHot(client)) {
+                coldLatency.recordValue(latencyNanos);
+                coldDelivered.increment();
+            }
+        }
+
+        // Ticks every millisecond and sends rate / 1000 messages per tick, carrying the remainder over
+        private Disposable drive() {
+            double perTick = rate / 1000.0;
+            double[] due = {0};
+            return Flux.interval(Duration.ofMillis(1)).subscribe(tick -> {
+                due[0] += perTick;
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (; due[0] >= 1; due[0]--) {
+                    int client = hotShare > 0 && random.nextDouble() < hotShare ? hotClient(random) : random.nextInt(clients);
+                    if (outbound.get(client).tryEmitNext(messageFrame(client)).isSuccess()) {
+                        sent.increment();
+                        if (!isHot(client)) {
+                            coldSent.increment();
+                        }
+                    }
+                }
+            });
+        }
+
+        private void reset() {
+            measuredFrom = System.nanoTime();
+            sent.reset();
+            delivered.reset();
+            latency.reset();
+            coldSent.reset();
+            coldDelivered.reset();
+            coldLatency.reset();
+        }
+
+        private boolean report() {
+            double seconds = (System.nanoTime() - measuredFrom) / 1e9;
+            boolean passed = report("/" + endpoint, sent.sum() / seconds, delivered.sum() / seconds,
+                    latency.getIntervalHistogram());
+            if (hotShare > 0 && !endpoint.equals("global")) {
+                passed &= report("  others", coldSent.sum() / seconds, coldDelivered.sum() / seconds,
+                        coldLatency.getIntervalHistogram());
+            }
+            return passed;
+        }
+
+        private boolean report(String label, double sentPerSecond, double deliveredPerSecond, Histogram histogram) {
+            System.out.printf("%-8s %10.0f %12.0f %10.2f %10.2f %10.2f %10.2f%n", label, sentPerSecond, deliveredPerSecond,
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+                    histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMaxValue() / 1e6);
+            return maxP99Millis <= 0 || histogram.getValueAtPercentile(99) <= TimeUnit.MILLISECONDS.toNanos(maxP99Millis);
+        }
+
+        private void close() {
+            outbound.forEach(Sinks.Many::tryEmitComplete);
+            connections.forEach(Disposable::dispose);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.demo.websocket;
+
+import io.r2dbc.spi.ConnectionFactories;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First page vs. deep page of the keyset-paginated company history, on a synthetic chat_message
+ * table in an in-memory H2 (MySQL mode) standing in for MySQL. The OFFSET variant is the baseline
+ * the keyset query replaces: its cost grows with the depth, the keyset pages should not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class ChatHistoryBenchmark {
+
+    private static final String URL = "r2dbc:h2:mem:///history_bench;DB_CLOSE_DELAY=-1;MODE=MySQL";
+    private static final int COMPANIES = 20;
+    private static final String COMPANY = "C0";
+
+    @Param("2000000")
+    public int rows;
+
+    @Param("50")
+    public int pageSize;
+
+    private DatabaseClient databaseClient;
+    private int deepOffset;
+    private long deepTimestamp;
+    private long deepId;
+
+    @Setup
+    public void setUp() {
+        databaseClient = DatabaseClient.create(ConnectionFactories.get(URL));
+        databaseClient.sql("DROP TABLE IF EXISTS chat_message").then().block();
+        databaseClient.sql("CREATE TABLE chat_message (id BIGINT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(64), " +
+                "content VARCHAR(255), company_code VARCHAR(32), timestamp BIGINT)").then().block();
+        databaseClient.sql("INSERT INTO chat_message (sender, content, company_code, timestamp) " +
+                "SELECT 'user' || MOD(X, 500), 'message ' || X, 'C' || MOD(X, " + COMPANIES + "), 1700000000000 + X " +
+                "FROM SYSTEM_RANGE(1, " + rows + ")").then().block();
+        databaseClient.sql("CREATE INDEX idx_chat_message_company_ts_id ON chat_message (company_code, timestamp, id)")
+                .then().block();
+
+        // Cursor 90% of the way back into one company's history
+        deepOffset = rows / COMPANIES * 9 / 10;
+        Map<String, Object> cursor = databaseClient.sql("SELECT timestamp, id FROM chat_message WHERE company_code = :companyCode " +
+                        "ORDER BY timestamp DESC, id DESC LIMIT 1 OFFSET :offset")
+                .bind("companyCode", COMPANY)
+                .bind("offset", deepOffset)
+                .fetch().one().block();
+        deepTimestamp = ((Number) cursor.get("timestamp")).longValue();
+        deepId = ((Number) cursor.get("id")).longValue();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> firstPage() {
+        return databaseClient.sql(ChatMessageRepository.LATEST_PAGE_QUERY)
+                .bind("companyCode", COMPANY)
+                .bind("limit", pageSize)
+                .fetch().all().collectList().block();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> deepPageKeyset() {
+        return databaseClient.sql(ChatMessageRepository.PAGE_BEFORE_QUERY)
+                .bind("companyCode", COMPANY)
+                .bind("beforeTimestamp", deepTimestamp)
+                .bind("beforeId", deepId)
+                .bind("limit", pageSize)
+                .fetch().all().collectList().block();
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> deepPageOffset() {
+        return databaseClient.sql("SELECT * FROM chat_message WHERE company_code = :companyCode " +
+                        "ORDER BY company_code DESC, timestamp DESC, id DESC LIMIT :limit OFFSET :offset")
+                .bind("companyCode", COMPANY)
+                .bind("limit", pageSize)
+                .bind("offset", deepOffset)
+                .fetch().all().collectList().block();
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson cost of the /chat and /room messages:
+ * <ul>
+ *     <li>encode*: the once-per-publish encode into the shared frame payload</li>
+ *     <li>decode*: the handlers' per-frame readValue of the text payload</li>
+ *     <li>decode*Bytes: the same from the UTF-8 bytes, without the String decode in between</li>
+ *     <li>transcodeChatCbor / decodeChatCbor: the CBOR copy a frame makes once for CBOR sessions, and reading it back</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectMapper cborMapper = objectMapper.copyWith(new CBORFactory());
+
+    private ChatMessage chatMessage;
+    private RoomMessage roomMessage;
+    private String chatText;
+    private String roomText;
+    private byte[] chatBytes;
+    private byte[] roomBytes;
+    private byte[] chatCbor;
+
+    @Setup
+    public void setUp() throws Exception {
+        chatMessage = new ChatMessage();
+        chatMessage.setSender("user0");
+        chatMessage.setCompanyCode("C0");
+        chatMessage.setContent("Hello, everyone in the company");
+        chatMessage.setTimestamp(1_700_000_000_000L);
+        chatMessage.setEpoch(1_700_000_000_001L);
+        chatMessage.setSeq(42L);
+
+        roomMessage = new RoomMessage();
+        roomMessage.setSender("user0");
+        roomMessage.setRoomId("room-1");
+        roomMessage.setContent("Hello, everyone in the room");
+        roomMessage.setTimestamp(1_700_000_000_000L);
+        roomMessage.setEpoch(1_700_000_000_001L);
+        roomMessage.setSeq(42L);
+
+        chatBytes = objectMapper.writeValueAsBytes(chatMessage);
+        roomBytes = objectMapper.writeValueAsBytes(roomMessage);
+        chatText = new String(chatBytes, StandardCharsets.UTF_8);
+        roomText = new String(roomBytes, StandardCharsets.UTF_8);
+        chatCbor = new OutboundFrame(null, false, chatBytes).payload(WireFormat.CBOR);
+    }
+
+    @Benchmark
+    public byte[] encodeChat() throws Exception {
+        return objectMapper.writeValueAsBytes(chatMessage);
+    }
+
+    @Benchmark
+    public byte[] encodeRoom() throws Exception {
+        return objectMapper.writeValueAsBytes(roomMessage);
+    }
+
+    @Benchmark
+    public ChatMessage decodeChat() throws Exception {
+        return objectMapper.readValue(chatText, ChatMessage.class);
+    }
+
+    @Benchmark
+    public RoomMessage decodeRoom() throws Exception {
+        return objectMapper.readValue(roomText, RoomMessage.class);
+    }
+
+    @Benchmark
+    public ChatMessage decodeChatBytes() throws Exception {
+        return objectMapper.readValue(chatBytes, ChatMessage.class);
+    }
+
+    @Benchmark
+    public RoomMessage decodeRoomBytes() throws Exception {
+        return objectMapper.readValue(roomBytes, RoomMessage.class);
+    }
+
+    @Benchmark
+    public byte[] transcodeChatCbor() {
+        return new OutboundFrame(null, false, chatBytes).payload(WireFormat.CBOR);
+    }
+
+    @Benchmark
+    public ChatMessage decodeChatCbor() throws Exception {
+        return cborMapper.readValue(chatCbor, ChatMessage.class);
+    }
+}
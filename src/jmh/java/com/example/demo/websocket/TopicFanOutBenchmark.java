@@ -0,0 +1,139 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.Disposable;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One /chat message fanned out to every session of its company: publish to the topic hub, encode once
+ * on the shard, then per session the visibility filter, the session outbox and the buffer wrap that
+ * {@link OutboundFrame#toMessage} does. An operation ends when every session has its frame, so the
+ * score is the whole fan-out and gc.alloc.rate.norm is what it allocates across all sessions.
+ * <p>
+ * fanOutEncodePerSession is the baseline the encode-once frames replaced: same hub, filter and outbox,
+ * but every session serializes the message itself with writeValueAsString, as the handlers used to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicFanOutBenchmark {
+
+    private static final String COMPANY = "C0";
+    private static final String BASELINE_COMPANY = "C1";
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    @Param({"10", "100", "1000"})
+    private int sessions;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final AtomicLong delivered = new AtomicLong();
+    private final List<Disposable> subscriptions = new ArrayList<>();
+
+    private EventLoopGroup eventLoops;
+    private TopicHub hub;
+    private ChatMessage message;
+    private long expected;
+
+    @Setup
+    public void setUp() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        eventLoops = new DefaultEventLoopGroup(1);
+        hub = new TopicHub("bench", 1, 64, Duration.ofHours(1), eventLoops, meterRegistry);
+        for (int i = 0; i < sessions; i++) {
+            String recipient = "user" + i;
+            SessionOutbox outbox = new SessionOutbox(null, "chat", 1024, SessionOutbox.OverflowPolicy.DROP_OLDEST, 0,
+                    meterRegistry.counter("bench.dropped"), () -> { });
+            subscriptions.add(outbox.relay(hub.subscribe(COMPANY).filter(frame -> frame.isVisibleTo(recipient)))
+                    .map(frame -> bufferFactory.wrap(frame.payload()))
+                    .subscribe(buffer -> delivered.incrementAndGet()));
+            SessionOutbox baselineOutbox = new SessionOutbox(null, "chat", 1024, SessionOutbox.OverflowPolicy.DROP_OLDEST, 0,
+                    meterRegistry.counter("bench.dropped"), () -> { });
+            subscriptions.add(baselineOutbox.relay(hub.subscribe(BASELINE_COMPANY).filter(frame -> frame.isVisibleTo(recipient)))
+                    .map(frame -> bufferFactory.wrap(serialize(message).getBytes(StandardCharsets.UTF_8)))
+                    .subscribe(buffer -> delivered.incrementAndGet()));
+        }
+
+        message = new ChatMessage();
+        message.setSender("user0");
+        message.setCompanyCode(COMPANY);
+        message.setContent("Hello, everyone in the company");
+        message.setTimestamp(System.currentTimeMillis());
+
+        // Subscriptions are registered on the shard asynchronously: wait until all of them receive
+        fanOut();
+        fanOutEncodePerSession();
+    }
+
+    @Benchmark
+    public long fanOut() {
+        // The sender's own session filters the frame out
+        expected += sessions - 1;
+        hub.publish(COMPANY, message.getTimestamp(), (epoch, seq) -> {
+            message.setEpoch(epoch);
+            message.setSeq(seq);
+            return OutboundFrame.encode(objectMapper, message, message.getSender(), false);
+        });
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+
+    @Benchmark
+    public long fanOutEncodePerSession() {
+        expected += sessions - 1;
+        hub.publish(BASELINE_COMPANY, message.getTimestamp(), (epoch, seq) -> {
+            message.setEpoch(epoch);
+            message.setSeq(seq);
+            return new OutboundFrame(message.getSender(), false, NO_PAYLOAD);
+        });
+        while (delivered.get() < expected) {
+            Thread.onSpinWait();
+        }
+        return expected;
+    }
+
+    private String serialize(ChatMessage message) {
+        try {
+            return objectMapper.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscriptions.forEach(Disposable::dispose);
+        eventLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+}
@@ -4,6 +4,12 @@ import java.util.List;
 
 public class AuthConstant {
 
+    // Exchange attribute holding the authenticated UserModel; copied into WebSocket session attributes at handshake
+    public static final String AUTH_USER = "AUTH_USER";
+
+    // Browsers cannot set headers on a WebSocket upgrade, so the token may come as a query parameter there
+    public static final String ACCESS_TOKEN_PARAM = "access_token";
+
     public static final List<String> PERMIT_ALL_URLS = List.of(
             "/auth/login",
 
@@ -15,11 +21,6 @@ public class AuthConstant {
             "/webjars/**",
             "/favicon.ico",
 
-            "/chat",
-            "/chat/**",
-            "/room/**",
-            "/global",
-            "/global/**",
             "/ws/**",
             "/socket.io/**"
     );
@@ -9,7 +9,6 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.reactive.ServerHttpResponse;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
@@ -26,8 +25,9 @@ public class AuthController {
     @Autowired
     private UserRepository userRepository;
 
+    // BCrypt chạy trên thread pool riêng, không chặn event loop
     @Autowired
-    private PasswordEncoder passwordEncoder;
+    private PasswordHasher passwordHasher;
 
     @PostMapping("/login")
     public Mono<ResponseEntity<?>> login(@RequestBody AuthRequest request) {
@@ -37,14 +37,17 @@ public class AuthController {
                     log.error("User not found: {}", request.getId());
                     return Mono.just(ResponseEntity.status(401).body(new AuthResponse("User not found")));
                 }
-                if (passwordEncoder.matches(request.getPw(), user.getPassword())) {
-                    String token = jwtUtil.generateToken(user.getId(), user.getCompanyCode());
-                    log.info("Login successful for user: {}", user.getId());
-                    return Mono.just(ResponseEntity.ok(new AuthResponse(token)));
-                } else {
-                    log.warn("Invalid password for user: {}", user.getId());
-                    return Mono.just(ResponseEntity.status(401).build());
-                }
+                return passwordHasher.matches(request.getPw(), user.getPassword())
+                        .<ResponseEntity<?>>map(matched -> {
+                            if (matched) {
+                                String token = jwtUtil.generateToken(user.getId(), user.getCompanyCode());
+                                log.info("Login successful for user: {}", user.getId());
+                                return ResponseEntity.ok(new AuthResponse(token));
+                            } else {
+                                log.warn("Invalid password for user: {}", user.getId());
+                                return ResponseEntity.status(401).build();
+                            }
+                        });
             })
             .switchIfEmpty(Mono.fromSupplier(() -> {
                 log.warn("User not found for username: {}, companyCode: {}", request.getId(), request.getCompanyCode());
@@ -1,6 +1,6 @@
 package com.example.demo.auth;
 
-import com.example.demo.user.UserRepository;
+import com.example.demo.user.UserPrincipalCache;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.JwtException;
 import lombok.AllArgsConstructor;
@@ -13,7 +13,7 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextImpl;
-import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilter;
 import org.springframework.web.server.WebFilterChain;
@@ -27,76 +27,88 @@ public class AuthWebFilter implements WebFilter {
 
     private JwtUtil JwtUtil;
 
-    private UserRepository userRepository;
+    // UserModel theo (companyCode, id), không query tb_user cho mỗi request
+    private UserPrincipalCache userPrincipalCache;
 
-    private static final AntPathMatcher pathMatcher = new AntPathMatcher();
+    // PERMIT_ALL_URLS compile một lần lúc khởi động, match không cấp phát bộ nhớ
+    private static final PermitAllMatcher permitAllMatcher = new PermitAllMatcher(AuthConstant.PERMIT_ALL_URLS);
 
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        // Path đã được parse sẵn trong request, value() không tạo String mới
         String path = exchange.getRequest().getPath().value();
-        log.info("Processing filter for path={}, method={}, thread={}",
-                path, exchange.getRequest().getMethod(), Thread.currentThread().getName());
+        if (log.isDebugEnabled()) {
+            log.debug("Processing filter for path={}, method={}, thread={}",
+                    path, exchange.getRequest().getMethod(), Thread.currentThread().getName());
+        }
 
         // Bỏ qua các path không cần xác thực
-        if (isPermitAllPath(path) || exchange.getRequest().getMethod() == HttpMethod.OPTIONS) {
+        if (exchange.getRequest().getMethod() == HttpMethod.OPTIONS || permitAllMatcher.matches(path)) {
             return chain.filter(exchange);
         }
 
-        // Kiểm tra nếu filter đã được gọi
-        if (Boolean.TRUE.equals(exchange.getAttribute("FILTER_ALREADY_CALLED"))) {
+        // Filter bị gọi lại sau khi đã xác thực: dùng lại user đã lưu, không cần thêm attribute đánh dấu
+        Object authenticatedUser = exchange.getAttribute(AuthConstant.AUTH_USER);
+        if (authenticatedUser != null) {
             log.warn("Filter re-invoked! path={}", path);
-            Object user = exchange.getAttribute("AUTH_USER");
-            if (user != null) {
-                Authentication auth = new UsernamePasswordAuthenticationToken(user, null, List.of());
-                SecurityContext context = new SecurityContextImpl(auth);
-                return chain.filter(exchange).contextWrite(ReactiveSecurityContextHolder.withSecurityContext(Mono.just(context)));
-            }
-            log.warn("No AUTH_USER found, skipping re-invoked filter");
-            return chain.filter(exchange);
+            Authentication auth = new UsernamePasswordAuthenticationToken(authenticatedUser, null, List.of());
+            SecurityContext context = new SecurityContextImpl(auth);
+            return chain.filter(exchange).contextWrite(ReactiveSecurityContextHolder.withSecurityContext(Mono.just(context)));
         }
-        exchange.getAttributes().put("FILTER_ALREADY_CALLED", true);
-
-        String authHeader = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
-        exchange.getResponse().getHeaders().set(HttpHeaders.WWW_AUTHENTICATE, "Bearer");
 
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+        String token = extractToken(exchange);
+        if (token == null) {
             log.warn("Missing or invalid Authorization header for path={}", path);
-            exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
-            return exchange.getResponse().setComplete();
+            return unauthorized(exchange);
         }
 
         try {
-            String token = authHeader.substring(7);
             Claims claims = JwtUtil.extractClaims(token);
             String username = claims.getSubject();
             String companyCode = claims.get("companyCode", String.class);
 
-            return userRepository.findByIdAndCompanyCode(username, companyCode)
-                    .switchIfEmpty(Mono.error(new RuntimeException("User not found or company code mismatch")))
+            // Chỉ lỗi khi tìm user mới là lỗi xác thực; lỗi từ handler phía sau (404, 503...) giữ nguyên status
+            return userPrincipalCache.get(companyCode, username)
+                    .onErrorResume(e -> {
+                        log.error("Authentication error for path={}: {}", path, e.getMessage());
+                        return Mono.empty();
+                    })
                     .flatMap(user -> {
                         Authentication auth = new UsernamePasswordAuthenticationToken(user, null, List.of());
                         SecurityContext context = new SecurityContextImpl(auth);
-                        exchange.getAttributes().put("AUTH_USER", user);
-                        log.info("User authenticated: username={}, companyCode={}", username, companyCode);
-                        return chain.filter(exchange).contextWrite(ReactiveSecurityContextHolder.withSecurityContext(Mono.just(context)));
+                        exchange.getAttributes().put(AuthConstant.AUTH_USER, user);
+                        log.debug("User authenticated: username={}, companyCode={}", username, companyCode);
+                        return chain.filter(exchange)
+                                .contextWrite(ReactiveSecurityContextHolder.withSecurityContext(Mono.just(context)))
+                                .thenReturn(user);
                     })
-                    .onErrorResume(e -> {
-                        log.error("Authentication error for path={}: {}", path, e.getMessage());
-                        if (!exchange.getResponse().isCommitted()) {
-                            exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
-                            return exchange.getResponse().setComplete();
-                        }
-                        return Mono.empty();
-                    });
+                    .switchIfEmpty(Mono.defer(() -> {
+                        log.warn("User not found or company code mismatch for path={}", path);
+                        return unauthorized(exchange).then(Mono.empty());
+                    }))
+                    .then();
         } catch (JwtException e) {
             log.error("Invalid JWT token for path={}: {}", path, e.getMessage());
-            exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
-            return exchange.getResponse().setComplete();
+            return unauthorized(exchange);
+        }
+    }
+
+    // Bearer header, hoặc query param access_token khi là request upgrade WebSocket (JWT chỉ verify một lần lúc handshake)
+    private String extractToken(ServerWebExchange exchange) {
+        String authHeader = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
+        String token = null;
+        if (authHeader != null && authHeader.startsWith("Bearer ")) {
+            token = authHeader.substring(7);
+        } else if ("websocket".equalsIgnoreCase(exchange.getRequest().getHeaders().getUpgrade())) {
+            token = exchange.getRequest().getQueryParams().getFirst(AuthConstant.ACCESS_TOKEN_PARAM);
         }
+        return StringUtils.hasText(token) ? token : null;
     }
 
-    private boolean isPermitAllPath(String path) {
-        return AuthConstant.PERMIT_ALL_URLS.stream()
-                .anyMatch(pattern -> pathMatcher.match(pattern, path));
+    // WWW-Authenticate chỉ cần khi trả 401
+    private Mono<Void> unauthorized(ServerWebExchange exchange) {
+        exchange.getResponse().getHeaders().set(HttpHeaders.WWW_AUTHENTICATE, "Bearer");
+        exchange.getResponse().setStatusCode(HttpStatus.UNAUTHORIZED);
+        return exchange.getResponse().setComplete();
     }
 }
\ No newline at end of file
@@ -1,15 +1,25 @@
 package com.example.demo.auth;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.io.Decoders;
 import io.jsonwebtoken.security.Keys;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class JwtUtil {
@@ -17,6 +27,48 @@ public class JwtUtil {
     public static final String SECRET_KEY = "C2r1LmoEOTo7KMmJgcLEIKDW0oBHb2lhODIjF5s/AzA=";
     private static final long EXPIRATION_TIME = 86400000; // 1 day in milliseconds
 
+    // Key và parser chỉ tạo một lần, dùng chung cho mọi request (cả hai đều thread-safe)
+    private final SecretKey key = Keys.hmacShaKeyFor(Decoders.BASE64.decode(SECRET_KEY));
+    private final JwtParser parser = Jwts.parser().verifyWith(key).build();
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // Token đã verify, key là SHA-256 của token, tự hết hạn đúng thời điểm exp của token
+    private final Cache<ByteBuffer, Claims> verifiedTokens;
+
+    public JwtUtil(@Value("${jwt.cache.max-size:100000}") long cacheMaxSize) {
+        this.verifiedTokens = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfter(new Expiry<ByteBuffer, Claims>() {
+                    @Override
+                    public long expireAfterCreate(ByteBuffer digest, Claims claims, long currentTime) {
+                        Date expiration = claims.getExpiration();
+                        if (expiration == null) {
+                            return Long.MAX_VALUE;
+                        }
+                        long remainingMillis = expiration.getTime() - System.currentTimeMillis();
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMillis));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(ByteBuffer digest, Claims claims, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(ByteBuffer digest, Claims claims, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
     public String generateToken(String username, String companyCode) {
         Map<String, Object> claims = new HashMap<>();
         claims.put("companyCode", companyCode);
@@ -29,21 +81,30 @@ public class JwtUtil {
                 .issuedAt(new Date(System.currentTimeMillis()))
                 .expiration(new Date(System.currentTimeMillis() + EXPIRATION_TIME))
                 .and()
-                .signWith(generateKey())
+                .signWith(key)
                 .compact();
     }
 
+    /**
+     * Claims of a valid token. A token seen before is answered from the cache without verifying
+     * the signature again; invalid tokens are never cached, so they throw every time.
+     */
     public Claims extractClaims(String token) {
-        return Jwts.parser()
-                .verifyWith(generateKey())
-                .build()
-                .parseSignedClaims(token)
-                .getPayload();
+        ByteBuffer digest = digest(token);
+        Claims claims = verifiedTokens.getIfPresent(digest);
+        if (claims == null) {
+            claims = verify(token);
+            verifiedTokens.put(digest, claims);
+        }
+        return claims;
     }
 
-    private SecretKey generateKey() {
-        byte[] decode = Decoders.BASE64.decode(SECRET_KEY);
-        return Keys.hmacShaKeyFor(decode);
+    // Verify chữ ký và parse claims đầy đủ, không qua cache
+    Claims verify(String token) {
+        return parser.parseSignedClaims(token).getPayload();
     }
 
-}
\ No newline at end of file
+    private static ByteBuffer digest(String token) {
+        return ByteBuffer.wrap(SHA_256.get().digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
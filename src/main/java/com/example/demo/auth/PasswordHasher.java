@@ -0,0 +1,137 @@
+package com.example.demo.auth;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs BCrypt hashing and matching on a dedicated, bounded thread pool so it never runs on a
+ * Netty event loop.
+ * <p>
+ * When the pool's queue is full the request fails right away with 503 instead of piling up
+ * behind a login storm.
+ */
+@Component
+@Slf4j
+public class PasswordHasher {
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 0 = half of the available cores, at least one
+    @Value("${auth.password.threads:0}")
+    private int threads;
+
+    @Value("${auth.password.queue-capacity:64}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+    private Timer encodeWaitTimer;
+    private Timer encodeHashTimer;
+    private Timer matchesWaitTimer;
+    private Timer matchesHashTimer;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void init() {
+        int poolSize = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hasher-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        encodeWaitTimer = timer("auth.password.wait", "Time a hashing task waited for a worker", "encode");
+        encodeHashTimer = timer("auth.password.hash", "CPU time of one BCrypt operation", "encode");
+        matchesWaitTimer = timer("auth.password.wait", "Time a hashing task waited for a worker", "matches");
+        matchesHashTimer = timer("auth.password.hash", "CPU time of one BCrypt operation", "matches");
+        rejectedCounter = Counter.builder("auth.password.rejected")
+                .description("Hashing tasks refused because the queue was full")
+                .register(meterRegistry);
+        Gauge.builder("auth.password.queue.depth", executor, e -> e.getQueue().size())
+                .description("Hashing tasks waiting for a worker")
+                .register(meterRegistry);
+        log.info("Password hasher: threads={}, queueCapacity={}", poolSize, queueCapacity);
+    }
+
+    /**
+     * Worker threads; callers hashing in bulk should keep at most this many calls in flight.
+     */
+    public int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    public Mono<String> encode(CharSequence rawPassword) {
+        return submit(() -> passwordEncoder.encode(rawPassword), encodeWaitTimer, encodeHashTimer);
+    }
+
+    public Mono<Boolean> matches(CharSequence rawPassword, String encodedPassword) {
+        return submit(() -> passwordEncoder.matches(rawPassword, encodedPassword), matchesWaitTimer, matchesHashTimer);
+    }
+
+    private <T> Mono<T> submit(Callable<T> task, Timer waitTimer, Timer hashTimer) {
+        return Mono.create(sink -> {
+            long enqueuedAt = System.nanoTime();
+            Future<?> future;
+            try {
+                future = executor.submit(() -> {
+                    long start = System.nanoTime();
+                    waitTimer.record(start - enqueuedAt, TimeUnit.NANOSECONDS);
+                    try {
+                        T result = task.call();
+                        hashTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        sink.success(result);
+                    } catch (Exception e) {
+                        sink.error(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                rejectedCounter.increment();
+                log.warn("Password hashing queue is full ({} waiting), rejecting request", executor.getQueue().size());
+                sink.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many concurrent logins, retry later"));
+                return;
+            }
+            // A cancelled login does not need its hash any more
+            sink.onCancel(() -> future.cancel(false));
+        });
+    }
+
+    private Timer timer(String name, String description, String operation) {
+        return Timer.builder(name)
+                .description(description)
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.demo.auth;
+
+import org.springframework.http.server.PathContainer;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Permit-all URL patterns compiled once at startup.
+ * <p>
+ * Literal patterns go into a hash set and "/prefix/**" patterns into a prefix array, which covers
+ * every entry of {@link AuthConstant#PERMIT_ALL_URLS} and is checked against the request path
+ * without allocating. Any other pattern falls back to a precompiled {@link PathPattern}.
+ */
+public class PermitAllMatcher {
+
+    private static final String ANY_SUFFIX = "/**";
+
+    private final Set<String> exact = new HashSet<>();
+    private final String[] prefixes;
+    private final PathPattern[] patterns;
+
+    public PermitAllMatcher(List<String> urls) {
+        List<String> prefixList = new ArrayList<>();
+        List<PathPattern> patternList = new ArrayList<>();
+        for (String url : urls) {
+            if (url.endsWith(ANY_SUFFIX) && isLiteral(url.substring(0, url.length() - ANY_SUFFIX.length()))) {
+                prefixList.add(url.substring(0, url.length() - ANY_SUFFIX.length()));
+            } else if (isLiteral(url)) {
+                exact.add(url);
+            } else {
+                patternList.add(PathPatternParser.defaultInstance.parse(url));
+            }
+        }
+        this.prefixes = prefixList.toArray(new String[0]);
+        this.patterns = patternList.toArray(new PathPattern[0]);
+    }
+
+    public boolean matches(String path) {
+        if (exact.contains(path)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            // "/prefix/**" matches "/prefix" itself and everything below it
+            if (path.startsWith(prefix)
+                    && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/')) {
+                return true;
+            }
+        }
+        if (patterns.length == 0) {
+            return false;
+        }
+        PathContainer container = PathContainer.parsePath(path);
+        for (PathPattern pattern : patterns) {
+            if (pattern.matches(container)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLiteral(String pattern) {
+        return pattern.indexOf('*') < 0 && pattern.indexOf('?') < 0 && pattern.indexOf('{') < 0;
+    }
+}
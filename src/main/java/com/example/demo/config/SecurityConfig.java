@@ -3,7 +3,8 @@ package com.example.demo.config;
 import com.example.demo.auth.AuthConstant;
 import com.example.demo.auth.AuthWebFilter;
 import com.example.demo.auth.JwtUtil;
-import com.example.demo.user.UserRepository;
+import com.example.demo.user.UserPrincipalCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
@@ -18,8 +19,8 @@ import org.springframework.security.web.server.SecurityWebFilterChain;
 public class SecurityConfig {
 
     @Bean
-    public AuthWebFilter authWebFilter(UserRepository userRepository, JwtUtil jwtUtil) {
-        return new AuthWebFilter(jwtUtil, userRepository);
+    public AuthWebFilter authWebFilter(UserPrincipalCache userPrincipalCache, JwtUtil jwtUtil) {
+        return new AuthWebFilter(jwtUtil, userPrincipalCache);
     }
 
     @Bean
@@ -35,9 +36,13 @@ public class SecurityConfig {
                 .build();
     }
 
+    // BCrypt cost factor (log2 rounds) for new hashes; existing hashes keep the cost they were made with
+    @Value("${auth.bcrypt.strength:10}")
+    private int bcryptStrength;
+
     @Bean
     public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        return new BCryptPasswordEncoder(bcryptStrength);
     }
 }
 
@@ -1,25 +1,123 @@
 package com.example.demo.config;
 
+import com.example.demo.auth.AuthConstant;
 import com.example.demo.websocket.ChatWebSocketHandler;
+import com.example.demo.websocket.ClusterBus;
+import com.example.demo.websocket.FairQueue;
 import com.example.demo.websocket.GlobalChatWebSocketHandler;
+import com.example.demo.websocket.LocalClusterBus;
+import com.example.demo.websocket.PeerClusterBus;
 import com.example.demo.websocket.RoomChatWebSocketHandler;
+import com.example.demo.websocket.TopicHub;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.Ordered;
 import org.springframework.web.reactive.HandlerMapping;
 import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.HandshakeInfo;
 import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.server.RequestUpgradeStrategy;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
 import org.springframework.web.reactive.socket.server.support.WebSocketHandlerAdapter;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+import reactor.netty.http.HttpResources;
+import reactor.netty.resources.LoopResources;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
 public class WebSocketConfig {
 
+    // 0 = one shard per available core
+    @Value("${websocket.hub.shards:0}")
+    private int hubShards;
+
+    @Value("${websocket.hub.replay-capacity:256}")
+    private int hubReplayCapacity;
+
+    @Value("${websocket.hub.idle-topic-ttl-seconds:600}")
+    private long hubIdleTopicTtlSeconds;
+
+    // Frames a weight-1 topic delivers per round of its shard
+    @Value("${websocket.fairness.quantum:16}")
+    private int fairnessQuantum;
+
+    // 0 = a topic may have any number of frames waiting for its shard
+    @Value("${websocket.fairness.topic-quota:0}")
+    private int fairnessTopicQuota;
+
+    @Value("${websocket.fairness.drain-burst:256}")
+    private int fairnessDrainBurst;
+
+    // companyCode=weight,...
+    @Value("${websocket.fairness.company-weights:}")
+    private String fairnessCompanyWeights;
+
+    // roomId=weight,...
+    @Value("${websocket.fairness.room-weights:}")
+    private String fairnessRoomWeights;
+
+    // local = this JVM only, peer = TCP mesh with cluster.peers
+    @Value("${cluster.mode:local}")
+    private String clusterMode;
+
+    // Empty = localhost:<cluster.port>; must match how the other nodes list this one in cluster.peers
+    @Value("${cluster.node-id:}")
+    private String clusterNodeId;
+
+    // Loopback by default; set to the private interface the other nodes reach this one on
+    @Value("${cluster.bind-host:127.0.0.1}")
+    private String clusterBindHost;
+
+    @Value("${cluster.port:7400}")
+    private int clusterPort;
+
+    // Shared by every node, required in peer mode
+    @Value("${cluster.secret:}")
+    private String clusterSecret;
+
+    @Value("${cluster.peers:}")
+    private String clusterPeers;
+
+    @Value("${cluster.batch-size:256}")
+    private int clusterBatchSize;
+
+    @Value("${cluster.batch-interval-ms:2}")
+    private long clusterBatchIntervalMs;
+
+    @Value("${cluster.queue-capacity:10000}")
+    private int clusterQueueCapacity;
+
+    @Value("${cluster.reconnect-delay-ms:1000}")
+    private long clusterReconnectDelayMs;
+
     @Bean
     public WebSocketHandlerAdapter webSocketHandlerAdapter() {
-        return new WebSocketHandlerAdapter();
+        // The user authenticated by AuthWebFilter during the handshake becomes a session attribute,
+        // so handlers know who is connected without trusting sender/companyCode from the frames.
+        // HandshakeWebSocketService only copies WebSession attributes, and a WebSession per connection
+        // would fill the session store, so the exchange attribute is added to the handshake info here.
+        RequestUpgradeStrategy upgradeStrategy = new ReactorNettyRequestUpgradeStrategy();
+        HandshakeWebSocketService webSocketService = new HandshakeWebSocketService(
+                (exchange, handler, subProtocol, handshakeInfoFactory) -> upgradeStrategy.upgrade(exchange, handler, subProtocol,
+                        () -> withAuthenticatedUser(handshakeInfoFactory.get(), exchange.getAttribute(AuthConstant.AUTH_USER))));
+        return new WebSocketHandlerAdapter(webSocketService);
+    }
+
+    private static HandshakeInfo withAuthenticatedUser(HandshakeInfo info, Object user) {
+        if (user == null) {
+            return info;
+        }
+        Map<String, Object> attributes = new HashMap<>(info.getAttributes());
+        attributes.put(AuthConstant.AUTH_USER, user);
+        return new HandshakeInfo(info.getUri(), info.getHeaders(), info.getCookies(), info.getPrincipal(),
+                info.getSubProtocol(), info.getRemoteAddress(), attributes, info.getLogPrefix());
     }
 
     @Bean
@@ -38,4 +136,43 @@ public class WebSocketConfig {
         mapping.setOrder(Ordered.HIGHEST_PRECEDENCE);
         return mapping;
     }
+
+    @Bean
+    public ClusterBus clusterBus(MeterRegistry meterRegistry) {
+        if (!"peer".equals(clusterMode)) {
+            return new LocalClusterBus();
+        }
+        String nodeId = clusterNodeId.isBlank() ? "localhost:" + clusterPort : clusterNodeId;
+        List<String> peers = Arrays.stream(clusterPeers.split(","))
+                .map(String::trim)
+                .filter(peer -> !peer.isEmpty())
+                .toList();
+        PeerClusterBus bus = new PeerClusterBus(nodeId, clusterBindHost, clusterPort, clusterSecret, peers,
+                clusterBatchSize, Duration.ofMillis(clusterBatchIntervalMs), clusterQueueCapacity,
+                Duration.ofMillis(clusterReconnectDelayMs), meterRegistry);
+        bus.start();
+        return bus;
+    }
+
+    @Bean
+    public TopicHub companyTopicHub(MeterRegistry meterRegistry, ClusterBus clusterBus) {
+        return new TopicHub("company", shardCount(), hubReplayCapacity, Duration.ofSeconds(hubIdleTopicTtlSeconds),
+                HttpResources.get().onServer(LoopResources.DEFAULT_NATIVE), meterRegistry,
+                (topic, subscribed) -> clusterBus.interest("company", topic, subscribed), fairness(fairnessCompanyWeights));
+    }
+
+    @Bean
+    public TopicHub roomTopicHub(MeterRegistry meterRegistry, ClusterBus clusterBus) {
+        return new TopicHub("room", shardCount(), hubReplayCapacity, Duration.ofSeconds(hubIdleTopicTtlSeconds),
+                HttpResources.get().onServer(LoopResources.DEFAULT_NATIVE), meterRegistry,
+                (topic, subscribed) -> clusterBus.interest("room", topic, subscribed), fairness(fairnessRoomWeights));
+    }
+
+    private TopicHub.Fairness fairness(String weights) {
+        return new TopicHub.Fairness(fairnessQuantum, fairnessTopicQuota, fairnessDrainBurst, FairQueue.weights(weights));
+    }
+
+    private int shardCount() {
+        return hubShards > 0 ? hubShards : Runtime.getRuntime().availableProcessors();
+    }
 }
\ No newline at end of file
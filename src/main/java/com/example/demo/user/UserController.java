@@ -1,9 +1,18 @@
 package com.example.demo.user;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
@@ -11,10 +20,16 @@ import org.springframework.security.core.context.SecurityContext;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 @RestController
 @Slf4j
 @Tag(name = "500.User API", description = "User API.")
@@ -23,30 +38,73 @@ public class UserController {
     @Autowired
     UserService UserService;
 
-    @GetMapping("/user")
-    public Flux<UserModel> getUser() {
-        return UserService.getAllUsers();
+    @Autowired
+    private UserImportService userImportService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${user.max-page-size:500}")
+    private int maxPageSize;
+
+    // User cùng công ty với người gọi, phân trang theo id: truyền id cuối của trang trước vào afterId
+    @GetMapping(value = "/user", produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+    public Flux<UserModel> getUser(@RequestParam(required = false) String afterId,
+                                   @RequestParam(defaultValue = "100") int size) {
+        int limit = Math.max(1, Math.min(size, maxPageSize));
+        return currentUser()
+                .flatMapMany(user -> UserService.getCompanyUsers(user.getCompanyCode(), afterId, limit));
     }
 
     @GetMapping("/me")
     public Mono<UserModel> getCurrentUser() {
-        return ReactiveSecurityContextHolder.getContext()
-                .map(SecurityContext::getAuthentication)
-                .map(Authentication::getPrincipal)
-                .cast(UserModel.class);
+        return currentUser();
     }
 
-    @GetMapping("/user-all")
-    public Mono<UserResponseDto> getAllUsersAndCurrent() {
-        Mono<UserModel> currentUserMono = ReactiveSecurityContextHolder.getContext()
+    // Cùng dạng JSON với UserResponseDto nhưng được ghi dần: user hiện tại trước, rồi từng user trong công ty,
+    // không gom cả danh sách vào bộ nhớ
+    @GetMapping(value = "/user-all", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiResponse(responseCode = "200", content = @Content(schema = @Schema(implementation = UserResponseDto.class)))
+    public Flux<DataBuffer> getAllUsersAndCurrent(ServerWebExchange exchange) {
+        DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
+        return currentUser().flatMapMany(current -> {
+            AtomicBoolean first = new AtomicBoolean(true);
+            Flux<DataBuffer> users = UserService.getAllCompanyUsers(current.getCompanyCode())
+                    .map(user -> bufferFactory.wrap(json(first.getAndSet(false) ? "" : ",", user, "")));
+            return Flux.concat(
+                    Mono.fromCallable(() -> bufferFactory.wrap(json("{\"currentUser\":", current, ",\"allUsers\":["))),
+                    users,
+                    Mono.fromCallable(() -> bufferFactory.wrap("]}".getBytes(StandardCharsets.UTF_8))));
+        });
+    }
+
+    // Import hàng loạt: body NDJSON (mỗi dòng một CreateUserRequest), kết quả từng dòng trả về dạng NDJSON.
+    // Chỉ import vào công ty của người gọi
+    @PostMapping(value = "/user/import", consumes = MediaType.APPLICATION_NDJSON_VALUE,
+            produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<UserImportResult> importUsers(@RequestBody Flux<CreateUserRequest> requests) {
+        return currentUser().flatMapMany(user -> userImportService.importUsers(requests, user.getCompanyCode()));
+    }
+
+    // Import hàng loạt từ CSV, dòng đầu là header với tên các field của CreateUserRequest
+    @PostMapping(value = "/user/import", consumes = "text/csv", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<UserImportResult> importUsersCsv(@RequestBody Flux<String> lines) {
+        return currentUser().flatMapMany(user -> userImportService.importCsv(lines, user.getCompanyCode()));
+    }
+
+    private Mono<UserModel> currentUser() {
+        return ReactiveSecurityContextHolder.getContext()
                 .map(SecurityContext::getAuthentication)
                 .map(Authentication::getPrincipal)
                 .cast(UserModel.class);
+    }
 
-        Flux<UserModel> allUsersFlux = UserService.getAllUsers();
-
-        return currentUserMono.zipWith(allUsersFlux.collectList())
-                .map(tuple -> new UserResponseDto(tuple.getT1(), tuple.getT2()));
+    private byte[] json(String prefix, UserModel user, String suffix) {
+        try {
+            return (prefix + objectMapper.writeValueAsString(user) + suffix).getBytes(StandardCharsets.UTF_8);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize user " + user.getId(), e);
+        }
     }
 
     @PostMapping("/user")
@@ -54,7 +112,11 @@ public class UserController {
         return UserService.createUser(req)
                 .map(user -> ResponseEntity.status(HttpStatus.CREATED).body(user))
                 .onErrorResume(e -> {
-                    e.printStackTrace();
+                    if (e instanceof ResponseStatusException statusException) {
+                        // Ví dụ: 503 khi thread pool BCrypt đã đầy
+                        return Mono.just(ResponseEntity.status(statusException.getStatusCode()).body(statusException.getReason()));
+                    }
+                    log.error("Create user failed: companyCode={}, id={}", req.getCompanyCode(), req.getId(), e);
                     return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage()));
                 });
     }
@@ -0,0 +1,30 @@
+package com.example.demo.user;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Outcome of one row of a bulk user import, streamed back in input order.
+ *
+ * @param line   1-based row number in the request body (CSV header not counted)
+ * @param reason why the row was not created, null when it was
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record UserImportResult(long line, String companyCode, String id, Status status, String reason) {
+
+    public enum Status {
+        CREATED,
+        /** Already in tb_user before the import. */
+        EXISTS,
+        /** Same (companyCode, id) as an earlier row of this import. */
+        DUPLICATE,
+        /** Missing companyCode, id or password, or an unreadable row. */
+        INVALID,
+        /** Hashing or the insert failed. */
+        FAILED,
+        /**
+         * Written with INSERT IGNORE, but the batch affected fewer rows than it had: another writer
+         * created some of its ids in the meantime, so this row may or may not be ours.
+         */
+        UNCONFIRMED
+    }
+}
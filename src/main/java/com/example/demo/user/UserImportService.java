@@ -0,0 +1,284 @@
+package com.example.demo.user;
+
+import com.example.demo.auth.PasswordHasher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulk user import: rows are deduplicated as they stream in, then handled in batches of
+ * user.import.batch-size. Each batch takes one query to find the ids already in tb_user and one
+ * multi-row INSERT IGNORE; the passwords in between are hashed in parallel on the PasswordHasher pool.
+ * <p>
+ * Users are only imported into the caller's company: a row without companyCode gets it, a row naming
+ * another company is INVALID.
+ */
+@Service
+@Slf4j
+public class UserImportService {
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Autowired
+    private PasswordHasher passwordHasher;
+
+    @Autowired
+    private UserPrincipalCache userPrincipalCache;
+
+    @Value("${user.import.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * One result per row, in input order, emitted batch by batch.
+     *
+     * @param companyCode company of the caller, the only one rows may be imported into
+     */
+    public Flux<UserImportResult> importUsers(Flux<CreateUserRequest> requests, String companyCode) {
+        AtomicLong lines = new AtomicLong();
+        // Only touched from map, which sees one row at a time
+        Set<Key> seen = new HashSet<>();
+        return requests
+                .map(request -> {
+                    Row row = new Row(lines.incrementAndGet(), request);
+                    row.result = check(row, companyCode, seen);
+                    return row;
+                })
+                .buffer(batchSize)
+                .concatMap(this::importBatch);
+    }
+
+    /**
+     * CSV with a header line naming the CreateUserRequest fields, in any order. Fields may be
+     * double-quoted; a quote inside a quoted field is written twice.
+     */
+    public Flux<UserImportResult> importCsv(Flux<String> lines, String companyCode) {
+        AtomicReference<String[]> header = new AtomicReference<>();
+        Flux<CreateUserRequest> requests = lines
+                .filter(StringUtils::hasText)
+                .handle((line, sink) -> {
+                    if (header.get() == null) {
+                        header.set(parseCsvLine(line));
+                        return;
+                    }
+                    sink.next(toRequest(header.get(), parseCsvLine(line)));
+                });
+        return importUsers(requests, companyCode);
+    }
+
+    private Flux<UserImportResult> importBatch(List<Row> batch) {
+        List<Row> candidates = batch.stream().filter(row -> row.result == null).toList();
+        if (candidates.isEmpty()) {
+            return Flux.fromIterable(batch).map(row -> row.result);
+        }
+        return findExisting(candidates)
+                .flatMapMany(existing -> {
+                    List<Row> toInsert = new ArrayList<>(candidates.size());
+                    for (Row row : candidates) {
+                        if (existing.contains(row.key())) {
+                            row.result = result(row, UserImportResult.Status.EXISTS, "User already exists");
+                        } else {
+                            toInsert.add(row);
+                        }
+                    }
+                    // Keep at most one hash per worker in flight, so the import does not crowd logins out of the queue
+                    return Flux.fromIterable(toInsert)
+                            .flatMap(row -> passwordHasher.encode(row.request.getPassword())
+                                    .doOnNext(hash -> row.encodedPassword = hash)
+                                    .onErrorResume(e -> {
+                                        row.result = result(row, UserImportResult.Status.FAILED, e.getMessage());
+                                        return Mono.empty();
+                                    }), passwordHasher.getThreads())
+                            .thenMany(Flux.defer(() -> insert(toInsert.stream().filter(row -> row.result == null).toList())));
+                })
+                // Every row has its result once the insert is done
+                .thenMany(Flux.fromIterable(batch).map(row -> row.result));
+    }
+
+    // (companyCode, id) of the batch rows that are already in tb_user
+    private Mono<Set<Key>> findExisting(List<Row> rows) {
+        StringBuilder sql = new StringBuilder("SELECT company_code, id FROM tb_user WHERE (company_code, id) IN (");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append("(:companyCode").append(i).append(", :id").append(i).append(')');
+        }
+        sql.append(')');
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < rows.size(); i++) {
+            spec = spec.bind("companyCode" + i, rows.get(i).request.getCompanyCode())
+                    .bind("id" + i, rows.get(i).request.getId());
+        }
+        return spec.map((row, metadata) -> new Key(row.get("company_code", String.class), row.get("id", String.class)))
+                .all()
+                .collect(HashSet::new, Set::add);
+    }
+
+    private Mono<Void> insert(List<Row> rows) {
+        if (rows.isEmpty()) {
+            return Mono.empty();
+        }
+        StringBuilder sql = new StringBuilder("INSERT IGNORE INTO tb_user (company_code, id, user_name, password, email, " +
+                "authority, position_level, job_title, use_yn, created_user, updated_user) VALUES ");
+        for (int i = 0; i < rows.size(); i++) {
+            sql.append(i > 0 ? ", " : "")
+                    .append("(:companyCode").append(i)
+                    .append(", :id").append(i)
+                    .append(", :userName").append(i)
+                    .append(", :password").append(i)
+                    .append(", :email").append(i)
+                    .append(", :authority").append(i)
+                    .append(", :positionLevel").append(i)
+                    .append(", :jobTitle").append(i)
+                    .append(", 'Y', :createdUser").append(i)
+                    .append(", :createdUser").append(i).append(')');
+        }
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            CreateUserRequest request = row.request;
+            spec = spec.bind("companyCode" + i, request.getCompanyCode())
+                    .bind("id" + i, request.getId())
+                    .bind("password" + i, row.encodedPassword);
+            spec = bind(spec, "userName" + i, request.getUserName());
+            spec = bind(spec, "email" + i, request.getEmail());
+            spec = bind(spec, "authority" + i, request.getAuthority());
+            spec = bind(spec, "positionLevel" + i, request.getPositionLevel());
+            spec = bind(spec, "jobTitle" + i, request.getJobTitle());
+            spec = bind(spec, "createdUser" + i, request.getCreatedUser());
+        }
+        return spec.fetch().rowsUpdated()
+                .doOnNext(inserted -> {
+                    UserImportResult.Status status = inserted == rows.size()
+                            ? UserImportResult.Status.CREATED : UserImportResult.Status.UNCONFIRMED;
+                    if (status == UserImportResult.Status.UNCONFIRMED) {
+                        log.warn("Bulk import batch inserted {} of {} users, the rest were created concurrently",
+                                inserted, rows.size());
+                    }
+                    for (Row row : rows) {
+                        row.result = result(row, status, null);
+                        userPrincipalCache.invalidate(row.request.getCompanyCode(), row.request.getId());
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.error("Error inserting {} imported users: {}", rows.size(), e.getMessage());
+                    rows.forEach(row -> row.result = result(row, UserImportResult.Status.FAILED, e.getMessage()));
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec, String name, String value) {
+        return value != null ? spec.bind(name, value) : spec.bindNull(name, String.class);
+    }
+
+    // Result decided before touching the database, or null if the row goes on to the batch
+    private static UserImportResult check(Row row, String companyCode, Set<Key> seen) {
+        CreateUserRequest request = row.request;
+        if (!StringUtils.hasText(request.getCompanyCode())) {
+            request.setCompanyCode(companyCode);
+        } else if (!request.getCompanyCode().equals(companyCode)) {
+            return result(row, UserImportResult.Status.INVALID, "Users can only be imported into your own company");
+        }
+        if (!StringUtils.hasText(request.getId()) || !StringUtils.hasText(request.getPassword())) {
+            return result(row, UserImportResult.Status.INVALID, "id and password are required");
+        }
+        if (!seen.add(row.key())) {
+            return result(row, UserImportResult.Status.DUPLICATE, "Same user earlier in this import");
+        }
+        return null;
+    }
+
+    private static UserImportResult result(Row row, UserImportResult.Status status, String reason) {
+        return new UserImportResult(row.line, row.request.getCompanyCode(), row.request.getId(), status, reason);
+    }
+
+    private static CreateUserRequest toRequest(String[] header, String[] values) {
+        CreateUserRequest request = new CreateUserRequest();
+        if (values == null) {
+            // Unreadable line: an empty request is reported as INVALID
+            return request;
+        }
+        for (int i = 0; i < header.length && i < values.length; i++) {
+            String value = values[i].isEmpty() ? null : values[i];
+            switch (header[i]) {
+                case "companyCode" -> request.setCompanyCode(value);
+                case "id" -> request.setId(value);
+                case "userName" -> request.setUserName(value);
+                case "password" -> request.setPassword(value);
+                case "email" -> request.setEmail(value);
+                case "authority" -> request.setAuthority(value);
+                case "positionLevel" -> request.setPositionLevel(value);
+                case "jobTitle" -> request.setJobTitle(value);
+                case "createdUser" -> request.setCreatedUser(value);
+                default -> {
+                    // Unknown columns are ignored
+                }
+            }
+        }
+        return request;
+    }
+
+    // Null when a quoted field is not closed
+    private static String[] parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+
+    private record Key(String companyCode, String id) {}
+
+    private static final class Row {
+
+        private final long line;
+        private final CreateUserRequest request;
+        private volatile UserImportResult result;
+        private volatile String encodedPassword;
+
+        private Row(long line, CreateUserRequest request) {
+            this.line = line;
+            this.request = request;
+        }
+
+        private Key key() {
+            return new Key(request.getCompanyCode(), request.getId());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.demo.user;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Authenticated users by (companyCode, id), so AuthWebFilter does not read tb_user on every request.
+ * <p>
+ * Loading is asynchronous and concurrent misses for the same user share one query. Entries expire
+ * after the configured TTL; anything that writes to tb_user must call {@link #invalidate}.
+ */
+@Component
+@Slf4j
+public class UserPrincipalCache {
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${auth.principal-cache.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    @Value("${auth.principal-cache.max-size:10000}")
+    private long maxSize;
+
+    private AsyncLoadingCache<Key, UserModel> cache;
+
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .maximumSize(maxSize)
+                .recordStats()
+                // A user that does not exist loads as null and is not cached
+                .buildAsync((key, executor) -> userRepository.findByIdAndCompanyCode(key.id(), key.companyCode()).toFuture());
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "principals");
+        log.info("Principal cache: ttl={}s, maxSize={}", ttlSeconds, maxSize);
+    }
+
+    /**
+     * The user, or empty if there is no such user in the company.
+     */
+    public Mono<UserModel> get(String companyCode, String id) {
+        // suppressCancel: other requests may be waiting on the same load
+        return Mono.fromFuture(() -> cache.get(new Key(companyCode, id)), true);
+    }
+
+    public void invalidate(String companyCode, String id) {
+        cache.synchronous().invalidate(new Key(companyCode, id));
+    }
+
+    private record Key(String companyCode, String id) {}
+}
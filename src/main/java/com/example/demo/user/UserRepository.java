@@ -3,12 +3,23 @@ package com.example.demo.user;
 import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface UserRepository extends ReactiveCrudRepository<UserModel, String> {
 
     Mono<UserModel> findByIdAndCompanyCode(String id, String companyCode);
 
+    // Keyset page of a company's users by id, served by index (company_code, id)
+    @Query("SELECT * FROM tb_user WHERE company_code = :companyCode AND id > :afterId ORDER BY id LIMIT :limit")
+    Flux<UserModel> findPageAfter(@Param("companyCode") String companyCode,
+                                  @Param("afterId") String afterId,
+                                  @Param("limit") int limit);
+
+    // Every user of a company, streamed row by row
+    @Query("SELECT * FROM tb_user WHERE company_code = :companyCode ORDER BY id")
+    Flux<UserModel> findAllByCompanyCode(@Param("companyCode") String companyCode);
+
     @Query("INSERT INTO tb_user (company_code, id, user_name, password, email, authority, position_level, job_title, use_yn, " +
             "created_user, updated_user) VALUES (:companyCode, :id, :userName, :password, :email, :authority, :positionLevel, " +
             ":jobTitle, 'Y', :createdUser, :createdUser)")
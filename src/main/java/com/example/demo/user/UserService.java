@@ -1,7 +1,7 @@
 package com.example.demo.user;
 
+import com.example.demo.auth.PasswordHasher;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -15,22 +15,31 @@ public class UserService {
     private UserRepository UserRepository;
 
     @Autowired
-    private PasswordEncoder passwordEncoder;
+    private PasswordHasher passwordHasher;
 
-    public Flux<UserModel> getAllUsers() {
-        return UserRepository.findAll();
+    // Mọi chỗ ghi vào tb_user phải invalidate cache này
+    @Autowired
+    private UserPrincipalCache userPrincipalCache;
+
+    // Một trang user của công ty, sau afterId (null = trang đầu)
+    public Flux<UserModel> getCompanyUsers(String companyCode, String afterId, int limit) {
+        return UserRepository.findPageAfter(companyCode, afterId == null ? "" : afterId, limit);
+    }
+
+    public Flux<UserModel> getAllCompanyUsers(String companyCode) {
+        return UserRepository.findAllByCompanyCode(companyCode);
     }
 
     public Mono<Object> createUser(CreateUserRequest req) {
 
         return UserRepository.findByIdAndCompanyCode(req.getId(), req.getCompanyCode())
                 .flatMap(existing -> Mono.error(new IllegalStateException("User already exists")))
-                .switchIfEmpty(Mono.defer(() -> {
+                .switchIfEmpty(passwordHasher.encode(req.getPassword()).flatMap(encodedPassword -> {
                     UserModel user = new UserModel();
                     user.setId(req.getId());
                     user.setCompanyCode(req.getCompanyCode());
                     user.setUserName(req.getUserName());
-                    user.setPassword(passwordEncoder.encode(req.getPassword())); // BCrypt
+                    user.setPassword(encodedPassword); // BCrypt, hashed off the event loop
                     user.setEmail(req.getEmail());
                     user.setAuthority(req.getAuthority());
                     user.setPositionLevel(req.getPositionLevel());
@@ -51,7 +60,7 @@ public class UserService {
                             user.getPositionLevel(),
                             user.getJobTitle(),
                             user.getCreatedUser()
-                    );
+                    ).doFinally(signal -> userPrincipalCache.invalidate(user.getCompanyCode(), user.getId()));
                 }));
     }
 
@@ -0,0 +1,83 @@
+package com.example.demo.websocket;
+
+import com.example.demo.user.UserModel;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Chat history, newest first, streamed as NDJSON.
+ * <p>
+ * Pages are keyset-paginated: pass the timestamp and id of the last message of the previous page
+ * as beforeTimestamp/beforeId to get the next (older) one. Pages are served straight from the
+ * (topic, timestamp, id) indexes in sql/history-indexes.sql, so a deep page costs the same as the first.
+ * <p>
+ * Company history is the caller's company only. Room history is for members of the room: users who
+ * created, joined or wrote to it. Anyone else gets 404, the same as for a room that does not exist.
+ */
+@RestController
+@RequestMapping("/history")
+@Slf4j
+@Tag(name = "600.History API", description = "Chat history API.")
+public class ChatHistoryController {
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Autowired
+    private RoomMessageRepository roomMessageRepository;
+
+    @Value("${history.max-page-size:200}")
+    private int maxPageSize;
+
+    @GetMapping(value = "/company", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<ChatMessage> getCompanyHistory(@RequestParam(required = false) Long beforeTimestamp,
+                                               @RequestParam(required = false) Long beforeId,
+                                               @RequestParam(defaultValue = "50") int size) {
+        int limit = pageSize(size);
+        // Chỉ đọc lịch sử của công ty người dùng hiện tại
+        return currentUser()
+                .flatMapMany(user -> beforeTimestamp == null || beforeId == null
+                        ? chatMessageRepository.findLatestPage(user.getCompanyCode(), limit)
+                        : chatMessageRepository.findPageBefore(user.getCompanyCode(), beforeTimestamp, beforeId, limit));
+    }
+
+    @GetMapping(value = "/room/{roomId}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<RoomMessage> getRoomHistory(@PathVariable String roomId,
+                                            @RequestParam(required = false) Long beforeTimestamp,
+                                            @RequestParam(required = false) Integer beforeId,
+                                            @RequestParam(defaultValue = "50") int size) {
+        int limit = pageSize(size);
+        return currentUser()
+                .filterWhen(user -> roomMessageRepository.findMembership(roomId, user.getCompanyCode(), user.getId()).hasElement())
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Room not found")))
+                .flatMapMany(user -> beforeTimestamp == null || beforeId == null
+                        ? roomMessageRepository.findLatestPage(roomId, limit)
+                        : roomMessageRepository.findPageBefore(roomId, beforeTimestamp, beforeId, limit));
+    }
+
+    private Mono<UserModel> currentUser() {
+        return ReactiveSecurityContextHolder.getContext()
+                .map(SecurityContext::getAuthentication)
+                .map(Authentication::getPrincipal)
+                .cast(UserModel.class);
+    }
+
+    private int pageSize(int size) {
+        return Math.max(1, Math.min(size, maxPageSize));
+    }
+}
@@ -2,6 +2,7 @@ package com.example.demo.websocket;
 
 import lombok.Data;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.relational.core.mapping.Table;
 
 @Data
@@ -13,4 +14,34 @@ public class ChatMessage {
     private String content;
     private String companyCode;
     private long timestamp;
-}
\ No newline at end of file
+
+    // "RESUME" để nhận lại các tin nhắn bị lỡ sau epoch/seq, null với tin nhắn chat thường
+    @Transient
+    private String action;
+
+    // Vị trí của tin nhắn trong topic companyCode, do server gán khi phát
+    @Transient
+    private Long epoch;
+
+    @Transient
+    private Long seq;
+
+    // Id do client tự đặt, được gửi lại trong frame ACK/NACK khi bật websocket.delivery.ack
+    @Transient
+    private String clientMsgId;
+
+    // Bản sao để phát qua topic: shard gán epoch/seq trên bản sao, object gốc vẫn đang được write-behind đọc
+    public ChatMessage copy() {
+        ChatMessage copy = new ChatMessage();
+        copy.id = id;
+        copy.sender = sender;
+        copy.content = content;
+        copy.companyCode = companyCode;
+        copy.timestamp = timestamp;
+        copy.action = action;
+        copy.epoch = epoch;
+        copy.seq = seq;
+        copy.clientMsgId = clientMsgId;
+        return copy;
+    }
+}
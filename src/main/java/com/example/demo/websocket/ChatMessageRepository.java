@@ -1,8 +1,35 @@
 package com.example.demo.websocket;
 
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.data.repository.query.Param;
 import reactor.core.publisher.Flux;
 
 public interface ChatMessageRepository extends R2dbcRepository<ChatMessage, String> {
+
+    // Trang lịch sử mới nhất / trang cũ hơn cursor (timestamp, id), dùng index (company_code, timestamp, id).
+    // company_code nằm trong ORDER BY để cả planner không tự bỏ cột so sánh bằng (H2) cũng đi theo index thay vì sort
+    String LATEST_PAGE_QUERY = "SELECT * FROM chat_message WHERE company_code = :companyCode " +
+            "ORDER BY company_code DESC, timestamp DESC, id DESC LIMIT :limit";
+    String PAGE_BEFORE_QUERY = "SELECT * FROM chat_message WHERE company_code = :companyCode " +
+            "AND timestamp <= :beforeTimestamp AND (timestamp < :beforeTimestamp OR id < :beforeId) " +
+            "ORDER BY company_code DESC, timestamp DESC, id DESC LIMIT :limit";
+
     Flux<ChatMessage> findByCompanyCode(String companyCode);
-}
\ No newline at end of file
+
+    @Query(LATEST_PAGE_QUERY)
+    Flux<ChatMessage> findLatestPage(@Param("companyCode") String companyCode, @Param("limit") int limit);
+
+    @Query(PAGE_BEFORE_QUERY)
+    Flux<ChatMessage> findPageBefore(@Param("companyCode") String companyCode,
+                                     @Param("beforeTimestamp") long beforeTimestamp,
+                                     @Param("beforeId") Long beforeId,
+                                     @Param("limit") int limit);
+
+    // Tin nhắn bị lỡ khi reconnect: tối đa `limit` tin mới nhất trong khoảng (after, before), theo thứ tự cũ -> mới
+    @Query("SELECT * FROM (SELECT * FROM chat_message WHERE company_code = :companyCode " +
+            "AND timestamp > :after AND timestamp < :before ORDER BY timestamp DESC, id DESC LIMIT :limit) gap " +
+            "ORDER BY timestamp, id")
+    Flux<ChatMessage> findGap(@Param("companyCode") String companyCode, @Param("after") long after,
+                              @Param("before") long before, @Param("limit") int limit);
+}
@@ -0,0 +1,271 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Write-behind stage for chat_message: messages are queued in a bounded queue and written
+ * with one multi-row INSERT once batch-size is reached or flush-interval elapses.
+ * When the queue is full the message is rejected right away instead of piling up on the R2DBC pool.
+ * <p>
+ * The queue is a {@link FairQueue} by companyCode: batches take each company's weighted share in turn,
+ * so one flooding company does not delay the writes of the others. With company-quota set, a company
+ * with that many messages queued is also rejected on its own instead of crowding the others out.
+ * <p>
+ * Content longer than the chat_message.content column is refused at enqueue. If the database still
+ * refuses a batch for a data integrity violation, its rows are written one by one, so only the bad
+ * message fails. Saved messages complete with the id the database generated.
+ */
+@Component
+@Slf4j
+public class ChatMessageWriteBehind {
+
+    // chat_message.content is VARCHAR(255), counted in characters
+    static final int MAX_CONTENT_LENGTH = 255;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.persist.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${chat.persist.batch-size:200}")
+    private int batchSize;
+
+    @Value("${chat.persist.flush-interval-ms:20}")
+    private long flushIntervalMs;
+
+    // 0 = only queue-capacity limits a company
+    @Value("${chat.persist.company-quota:0}")
+    private int companyQuota;
+
+    @Value("${websocket.fairness.quantum:16}")
+    private int quantum;
+
+    @Value("${websocket.fairness.company-weights:}")
+    private String companyWeights;
+
+    private FairQueue<PendingWrite> queue;
+
+    // Only one batch is written at a time
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private Disposable flushTicker;
+
+    private Timer flushTimer;
+    private DistributionSummary batchSizeSummary;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void init() {
+        queue = new FairQueue<>(quantum, companyQuota, queueCapacity, FairQueue.weights(companyWeights),
+                TimeUnit.MINUTES.toNanos(10));
+        Gauge.builder("chat.persist.queue.depth", queue, FairQueue::size)
+                .description("Number of chat messages waiting to be persisted")
+                .register(meterRegistry);
+        Gauge.builder("chat.persist.queue.companies", queue, FairQueue::keys)
+                .description("Companies with a recent place in the persist queue")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("chat.persist.flush")
+                .description("Latency of one multi-row chat_message insert")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("chat.persist.batch.size")
+                .description("Rows written per flush")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("chat.persist.rejected")
+                .description("Chat messages shed because the persist queue was full or their company over its quota")
+                .register(meterRegistry);
+
+        flushTicker = Flux.interval(Duration.ofMillis(flushIntervalMs))
+                .subscribe(tick -> flush());
+        log.info("Chat write-behind started: capacity={}, companyQuota={}, batchSize={}, flushInterval={}ms",
+                queueCapacity, companyQuota, batchSize, flushIntervalMs);
+    }
+
+    /**
+     * Queues a message. The Mono completes once the batch holding it has been written,
+     * or fails with RejectedExecutionException when the queue is full or the company is over its quota.
+     * Content longer than {@value #MAX_CONTENT_LENGTH} characters fails with IllegalArgumentException
+     * without being queued.
+     */
+    public Mono<ChatMessage> enqueue(ChatMessage message) {
+        return enqueue(message, () -> { });
+    }
+
+    /**
+     * Same as {@link #enqueue(ChatMessage)}, running {@code onQueued} as soon as the queue has taken the
+     * message. Nothing runs for a rejected message.
+     */
+    public Mono<ChatMessage> enqueue(ChatMessage message, Runnable onQueued) {
+        String content = message.getContent();
+        if (content != null && content.codePointCount(0, content.length()) > MAX_CONTENT_LENGTH) {
+            return Mono.error(new IllegalArgumentException("Message content is longer than " + MAX_CONTENT_LENGTH + " characters"));
+        }
+        return Mono.create(sink -> {
+            if (!queue.offer(message.getCompanyCode(), new PendingWrite(message, sink))) {
+                rejectedCounter.increment();
+                sink.error(new RejectedExecutionException("Chat persist queue is full for company " + message.getCompanyCode()));
+                return;
+            }
+            onQueued.run();
+            if (queue.size() >= batchSize) {
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        queue.drain(batchSize, batch::add);
+        if (batch.isEmpty()) {
+            flushing.set(false);
+            return;
+        }
+
+        long start = System.nanoTime();
+        insertBatch(batch)
+                .doOnNext(ids -> complete(batch, ids))
+                .then()
+                .onErrorResume(DataIntegrityViolationException.class, e -> insertEach(batch, e))
+                .doFinally(signal -> {
+                    flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    batchSizeSummary.record(batch.size());
+                    flushing.set(false);
+                    // A full batch is already waiting, don't wait for the next tick
+                    if (queue.size() >= batchSize) {
+                        flush();
+                    }
+                })
+                .subscribe(
+                        null,
+                        e -> {
+                            log.error("Error flushing {} chat messages: {}", batch.size(), e.getMessage());
+                            batch.forEach(pending -> pending.sink().error(e));
+                        },
+                        () -> log.debug("Flushed {} chat messages", batch.size()));
+    }
+
+    // One row made the whole multi-row INSERT fail: write the rows one by one so only that message fails
+    private Mono<Void> insertEach(List<PendingWrite> batch, DataIntegrityViolationException e) {
+        if (batch.size() == 1) {
+            return Mono.error(e);
+        }
+        log.warn("Batch of {} chat messages refused, writing them one by one: {}", batch.size(), e.getMessage());
+        return Flux.fromIterable(batch)
+                .concatMap(pending -> insertBatch(List.of(pending))
+                        .doOnNext(ids -> complete(List.of(pending), ids))
+                        .then()
+                        .onErrorResume(rowError -> {
+                            log.error("Error saving chat message from {}: {}", pending.message().getSender(), rowError.getMessage());
+                            pending.sink().error(rowError);
+                            return Mono.empty();
+                        }))
+                .then();
+    }
+
+    private static void complete(List<PendingWrite> batch, List<Long> ids) {
+        for (int i = 0; i < batch.size(); i++) {
+            ChatMessage message = batch.get(i).message();
+            message.setId(String.valueOf(ids.get(i)));
+            batch.get(i).sink().success(message);
+        }
+    }
+
+    // Returns the generated id of every row, in batch order
+    private Mono<List<Long>> insertBatch(List<PendingWrite> batch) {
+        StringBuilder sql = new StringBuilder("INSERT INTO chat_message (sender, content, company_code, timestamp) VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:sender").append(i)
+                    .append(", :content").append(i)
+                    .append(", :companyCode").append(i)
+                    .append(", :timestamp").append(i).append(')');
+        }
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < batch.size(); i++) {
+            ChatMessage message = batch.get(i).message();
+            spec = bind(spec, "sender" + i, message.getSender());
+            spec = bind(spec, "content" + i, message.getContent());
+            spec = bind(spec, "companyCode" + i, message.getCompanyCode());
+            spec = spec.bind("timestamp" + i, message.getTimestamp());
+        }
+        return spec.filter(statement -> statement.returnGeneratedValues("id"))
+                .map(row -> row.get("id", Number.class).longValue())
+                .all()
+                .collectList()
+                .map(ids -> generatedIds(ids, batch.size()));
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec, String name, String value) {
+        return value != null ? spec.bind(name, value) : spec.bindNull(name, String.class);
+    }
+
+    // H2 returns one key per row. MySQL only reports LAST_INSERT_ID, the id of the first row; the rows of
+    // one multi-row INSERT get consecutive ids (auto_increment_increment=1), as Connector/J assumes as well
+    static List<Long> generatedIds(List<Long> returned, int rows) {
+        if (returned.size() == rows) {
+            return returned;
+        }
+        if (returned.size() != 1) {
+            throw new IllegalStateException("Expected 1 or " + rows + " generated ids, got " + returned.size());
+        }
+        long first = returned.get(0);
+        List<Long> ids = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            ids.add(first + i);
+        }
+        return ids;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flushTicker != null) {
+            flushTicker.dispose();
+        }
+        // Write whatever is left before shutting down
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (queue.drain(batchSize, batch::add) > 0) {
+            try {
+                complete(batch, insertBatch(batch).block(Duration.ofSeconds(10)));
+            } catch (Exception e) {
+                log.error("Error flushing chat messages on shutdown: {}", e.getMessage());
+                batch.forEach(pending -> pending.sink().error(e));
+            }
+            batch.clear();
+        }
+    }
+
+    private record PendingWrite(ChatMessage message, MonoSink<ChatMessage> sink) {}
+}
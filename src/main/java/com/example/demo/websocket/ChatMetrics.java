@@ -0,0 +1,126 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Sinks;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the /chat, /room and /global pipelines, all tagged by endpoint:
+ * <ul>
+ *     <li>websocket.sessions: open sessions, also tagged by tenant (companyCode)</li>
+ *     <li>websocket.messages.in / websocket.messages.out: frames received from and written to clients</li>
+ *     <li>websocket.message.fanout.latency: receive to hand-off to the topic subscribers</li>
+ *     <li>websocket.serialization: encoding a message into its shared frame</li>
+ *     <li>websocket.emit.failed: sink emissions that did not go through, tagged by sink and result</li>
+ * </ul>
+ * Receive-to-persist latency is websocket.delivery.persist.lag (see {@link MessageDelivery}), the database
+ * writes themselves are chat.persist.flush and room.journal.drain, topic counts are websocket.hub.topics.
+ */
+@Component
+@Slf4j
+public class ChatMetrics {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // false = one session gauge per endpoint, for deployments with too many tenants to tag
+    @Value("${websocket.metrics.per-tenant:true}")
+    private boolean perTenant;
+
+    private final Map<String, AtomicInteger> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Counter> inCounters = new ConcurrentHashMap<>();
+    private final Map<String, Counter> outCounters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> fanOutTimers = new ConcurrentHashMap<>();
+    private final Map<String, Timer> serializationTimers = new ConcurrentHashMap<>();
+    private final Map<String, Counter> emitFailedCounters = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the session as open; run the returned callback once when it closes.
+     */
+    public Runnable sessionOpened(String endpoint, String tenant) {
+        String tenantTag = perTenant && tenant != null ? tenant : "all";
+        AtomicInteger open = sessions.computeIfAbsent(endpoint + '/' + tenantTag, k -> {
+            AtomicInteger count = new AtomicInteger();
+            Gauge.builder("websocket.sessions", count, AtomicInteger::get)
+                    .description("Open WebSocket sessions")
+                    .tag("endpoint", endpoint)
+                    .tag("tenant", tenantTag)
+                    .register(meterRegistry);
+            return count;
+        });
+        open.incrementAndGet();
+        return open::decrementAndGet;
+    }
+
+    public void received(String endpoint) {
+        inCounters.computeIfAbsent(endpoint, k -> Counter.builder("websocket.messages.in")
+                .description("Frames received from clients")
+                .tag("endpoint", k)
+                .register(meterRegistry)).increment();
+    }
+
+    public void sent(String endpoint) {
+        outCounters.computeIfAbsent(endpoint, k -> Counter.builder("websocket.messages.out")
+                .description("Frames written to clients")
+                .tag("endpoint", k)
+                .register(meterRegistry)).increment();
+    }
+
+    /**
+     * @param receivedAtNanos System.nanoTime() when the message was received
+     */
+    public void recordFanOut(String endpoint, long receivedAtNanos) {
+        fanOutTimers.computeIfAbsent(endpoint, k -> Timer.builder("websocket.message.fanout.latency")
+                        .description("Time from receiving a message to handing it to the topic subscribers")
+                        .tag("endpoint", k)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record(System.nanoTime() - receivedAtNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * {@link OutboundFrame#encode}, timed.
+     */
+    public OutboundFrame encode(String endpoint, ObjectMapper objectMapper, Object message, String sender,
+                                boolean echoToSender) throws Exception {
+        Timer timer = serializationTimers.computeIfAbsent(endpoint, k -> Timer.builder("websocket.serialization")
+                .description("Encoding a message into its shared frame")
+                .tag("endpoint", k)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        long start = System.nanoTime();
+        try {
+            return OutboundFrame.encode(objectMapper, message, sender, echoToSender);
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Counts a failed tryEmit*; does nothing for OK.
+     */
+    public void emitted(String endpoint, String sink, Sinks.EmitResult result) {
+        if (result.isSuccess()) {
+            return;
+        }
+        log.debug("Emit to {} sink of {} failed: {}", sink, endpoint, result);
+        emitFailedCounters.computeIfAbsent(endpoint + '/' + sink + '/' + result, k -> Counter.builder("websocket.emit.failed")
+                .description("Sink emissions that did not go through")
+                .tag("endpoint", endpoint)
+                .tag("sink", sink)
+                .tag("result", result.name())
+                .register(meterRegistry)).increment();
+    }
+}
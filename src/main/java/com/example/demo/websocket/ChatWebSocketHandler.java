@@ -2,9 +2,12 @@ package com.example.demo.websocket;
 
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
@@ -12,64 +15,128 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 @Component
 @Slf4j
 public class ChatWebSocketHandler implements WebSocketHandler {
 
+    @Autowired
+    private ChatMessageWriteBehind chatMessageWriteBehind;
+
     @Autowired
     private ChatMessageRepository chatMessageRepository;
 
     @Autowired
     private ObjectMapper objectMapper;
 
-    // Lưu trữ Sinks cho từng companyCode
-    private final Map<String, Sinks.Many<ChatMessage>> companySinks = new ConcurrentHashMap<>();
+    @Autowired
+    private SessionOutboxRegistry sessionOutboxRegistry;
+
+    // Phát trước hay lưu trước, và ACK/NACK cho người gửi
+    @Autowired
+    private MessageDelivery messageDelivery;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    @Autowired
+    private WireCodec wireCodec;
+
+    // Token bucket theo session và theo người gửi, kiểm tra trước khi parse frame
+    @Autowired
+    private IngressRateLimiter ingressRateLimiter;
+
+    // Topic theo companyCode, chia shard theo event loop
+    @Autowired
+    private TopicHub companyTopicHub;
+
+    // Chuyển tin nhắn sang các node khác có session cùng companyCode
+    @Autowired
+    private ClusterBus clusterBus;
+
+    // Số tin nhắn tối đa lấy từ DB khi replay buffer không đủ để resume
+    @Value("${websocket.resume.max-db-messages:500}")
+    private int resumeMaxDbMessages;
+
+    // Thời gian chờ frame RESUME đầu tiên sau khi kết nối; hết hạn (hoặc frame đầu không phải RESUME) thì subscribe topic ngay
+    @Value("${websocket.resume.wait-ms:500}")
+    private long resumeWaitMs;
+
+    @PostConstruct
+    public void init() {
+        clusterBus.listen(companyTopicHub.getName(), this::publishRemote);
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.SUB_PROTOCOLS;
+    }
 
     @Override
     public Mono<Void> handle(WebSocketSession session) {
         log.info("New WebSocket connection: {}", session.getId());
 
-        // Sinks để lưu companyCode và sender
-        Sinks.Many<String> companyCodeSink = Sinks.many().multicast().onBackpressureBuffer();
-        Flux<String> companyCodeFlux = companyCodeSink.asFlux().take(1).cache(); // Chỉ lấy companyCode đầu tiên
+        // Danh tính đã xác thực bằng JWT lúc handshake, không tin sender/companyCode client gửi lên
+        SessionIdentity identity = SessionIdentity.of(session);
+        if (identity == null) {
+            log.warn("Unauthenticated WebSocket session {}, closing", session.getId());
+            return session.close(CloseStatus.POLICY_VIOLATION);
+        }
+
+        Runnable sessionClosed = chatMetrics.sessionOpened("chat", identity.companyCode());
+        // JSON hoặc CBOR, theo subprotocol client chọn khi handshake
+        WireFormat format = WireFormat.of(session);
+
+        // Sink lưu tin nhắn đầu tiên: nếu là RESUME thì xác định điểm resume
+        Sinks.Many<ChatMessage> firstMessageSink = Sinks.many().multicast().onBackpressureBuffer();
+        Flux<ChatMessage> firstMessageFlux = firstMessageSink.asFlux().take(1).cache(); // Chỉ lấy tin nhắn đầu tiên
 
-        Sinks.Many<String> senderSink = Sinks.many().multicast().onBackpressureBuffer();
-        Flux<String> senderFlux = senderSink.asFlux().take(1).cache(); // Chỉ lấy sender đầu tiên
+        // Mỗi session có outbox riêng có giới hạn, client chậm không giữ chân các client khác
+        SessionOutbox outbox = sessionOutboxRegistry.open(session, "chat", true);
 
         // Xử lý tin nhắn nhận được
         Flux<ChatMessage> incoming = session.receive()
-                .map(WebSocketMessage::getPayloadAsText)
-                .doOnNext(text -> log.info("Received message: {}", text))
-                .flatMap(text -> {
+                .doOnNext(frame -> chatMetrics.received("chat"))
+                .transform(frames -> ingressRateLimiter.limit("chat", session, identity, frames))
+                .flatMap(frame -> {
                     try {
-                        ChatMessage message = objectMapper.readValue(text, ChatMessage.class);
-                        if (message.getSender() == null || message.getCompanyCode() == null) {
-                            log.warn("Invalid message: sender or companyCode missing");
+                        ChatMessage message = wireCodec.read(format, frame, ChatMessage.class);
+                        log.debug("Received message: {}", message);
+                        // Server gán sender và companyCode từ session
+                        message.setSender(identity.sender());
+                        message.setCompanyCode(identity.companyCode());
+                        // Phát điểm bắt đầu cho luồng gửi
+                        firstMessageSink.tryEmitNext(message);
+                        if ("RESUME".equals(message.getAction())) {
+                            log.info("Resume request: companyCode={}, sender={}, epoch={}, seq={}",
+                                    message.getCompanyCode(), message.getSender(), message.getEpoch(), message.getSeq());
                             return Mono.empty();
                         }
-                        // Phát companyCode và sender cho các luồng
-                        companyCodeSink.tryEmitNext(message.getCompanyCode());
-                        senderSink.tryEmitNext(message.getSender());
                         message.setTimestamp(System.currentTimeMillis());
-                        // Lưu tin nhắn vào database
-                        return chatMessageRepository.save(message)
+                        long acceptedAt = System.nanoTime();
+                        boolean emitFirst = messageDelivery.isEmitFirst();
+                        // Lưu tin nhắn vào database (ghi theo batch qua write-behind queue).
+                        // EMIT_FIRST: phát ngay khi queue đã nhận, không chờ commit MySQL; tin nhắn bị queue từ chối không được phát
+                        return chatMessageWriteBehind.enqueue(message, emitFirst ? () -> publish(message, acceptedAt) : () -> { })
                                 .doOnSuccess(saved -> {
-                                    log.info("Saved message: {} from {}", saved.getContent(), saved.getSender());
-                                    // Phát tin nhắn tới Sinks của companyCode
-                                    Sinks.Many<ChatMessage> sink = companySinks.computeIfAbsent(
-                                            message.getCompanyCode(),
-                                            k -> {
-                                                log.info("Created new sink for companyCode: {}", k);
-                                                return Sinks.many().multicast().onBackpressureBuffer();
-                                            }
-                                    );
-                                    sink.tryEmitNext(saved);
-                                    log.info("Emitted message to sink for companyCode: {}, sender: {}",
-                                            message.getCompanyCode(), saved.getSender());
-                                });
+                                    log.debug("Saved message: {} from {}", saved.getContent(), saved.getSender());
+                                    messageDelivery.recordPersisted("chat", acceptedAt);
+                                    if (!emitFirst) {
+                                        publish(saved, acceptedAt);
+                                    }
+                                    messageDelivery.ack(outbox, saved.getClientMsgId(), saved.getTimestamp());
+                                })
+                                .onErrorResume(RejectedExecutionException.class, e -> {
+                                    // Queue đầy: bỏ tin nhắn thay vì làm nghẽn kết nối DB, kể cả ở EMIT_FIRST tin nhắn chưa được phát
+                                    log.warn("Dropped message from {}: {}", message.getSender(), e.getMessage());
+                                    messageDelivery.nack(outbox, message.getClientMsgId(), message.getTimestamp(), e.getMessage());
+                                    return Mono.empty();
+                                })
+                                .doOnError(e -> messageDelivery.nack(outbox, message.getClientMsgId(),
+                                        message.getTimestamp(), e.getMessage()));
                     } catch (Exception e) {
                         log.error("Error parsing message: {}", e.getMessage());
                         return Mono.error(e);
@@ -78,38 +145,21 @@ public class ChatWebSocketHandler implements WebSocketHandler {
                 .doOnError(e -> log.error("Error in incoming stream: {}", e.getMessage()))
                 .onErrorContinue((e, obj) -> log.warn("Skipping invalid message: {}", e.getMessage()));
 
-        // Gửi tin nhắn mới từ các client khác trong cùng companyCode
-        Flux<WebSocketMessage> outgoing = companyCodeFlux
-                .flatMap(companyCode -> senderFlux.flatMap(sender -> {
-                    // Lấy Sinks cho companyCode
-                    Sinks.Many<ChatMessage> sink = companySinks.computeIfAbsent(
-                            companyCode,
-                            k -> {
-                                log.info("Created new sink for companyCode: {}", k);
-                                return Sinks.many().multicast().onBackpressureBuffer();
-                            }
-                    );
-                    // Lọc tin nhắn để không gửi lại tin nhắn của chính client
-                    return sink.asFlux()
-                            .filter(message -> {
-                                boolean shouldSend = !message.getSender().equals(sender);
-                                log.info("Filtering message from {} for sender {}: shouldSend={}",
-                                        message.getSender(), sender, shouldSend);
-                                return shouldSend;
-                            });
-                }))
-                .map(message -> {
-                    try {
-                        String serialized = objectMapper.writeValueAsString(message);
-                        log.info("Sending message to client: {}", serialized);
-                        return serialized;
-                    } catch (Exception e) {
-                        log.error("Error serializing message: {}", e.getMessage());
-                        return "";
-                    }
-                })
-                .filter(str -> !str.isEmpty())
-                .map(session::textMessage)
+        // Gửi tin nhắn mới từ các client khác trong cùng companyCode.
+        // Client chỉ nghe (không gửi gì) vẫn nhận tin nhắn: chỉ chờ RESUME trong resume-wait-ms
+        Mono<ChatMessage> resumeRequest = firstMessageFlux.next()
+                .filter(first -> "RESUME".equals(first.getAction()))
+                .timeout(Duration.ofMillis(resumeWaitMs), Mono.empty());
+        Flux<OutboundFrame> frames = resumeRequest
+                .flatMapMany(this::subscribe)
+                .switchIfEmpty(Flux.defer(() -> companyTopicHub.subscribe(identity.companyCode())))
+                // Lọc tin nhắn để không gửi lại tin nhắn của chính client
+                .filter(frame -> frame.isVisibleTo(identity.sender()));
+
+        Flux<WebSocketMessage> outgoing = outbox.relay(frames)
+                // Dùng lại payload đã serialize, không encode lại cho từng session
+                .map(frame -> frame.toMessage(session, format))
+                .doOnNext(frame -> chatMetrics.sent("chat"))
                 .doOnError(e -> log.error("Error in outgoing stream: {}", e.getMessage()))
                 .onErrorContinue((e, obj) -> log.warn("Skipping error in outgoing stream: {}", e.getMessage()));
 
@@ -118,17 +168,72 @@ public class ChatWebSocketHandler implements WebSocketHandler {
                 .doOnError(e -> log.error("WebSocket error, closing session: {}", e.getMessage()))
                 .doOnTerminate(() -> {
                     log.info("WebSocket session terminated: {}", session.getId());
-                    companyCodeSink.tryEmitComplete();
-                    senderSink.tryEmitComplete();
-                    // Dọn dẹp Sinks nếu không còn client
-                    companyCodeFlux.subscribe(companyCode -> {
-                        Sinks.Many<ChatMessage> sink = companySinks.get(companyCode);
-                        if (sink != null && sink.currentSubscriberCount() == 0) {
-                            companySinks.remove(companyCode);
-                            sink.tryEmitComplete();
-                            log.info("Removed sink for companyCode: {}", companyCode);
-                        }
-                    });
+                    firstMessageSink.tryEmitComplete();
+                    sessionClosed.run();
+                    // Topic không còn subscriber sẽ được hub dọn sau idle-topic-ttl
+                });
+    }
+
+    // Phát tin nhắn tới topic của companyCode, chỉ serialize một lần cho mọi session
+    private void publish(ChatMessage message, long receivedAt) {
+        publish(message, receivedAt, true);
+    }
+
+    // Tin nhắn từ node khác: node gửi đã lưu DB, ở đây chỉ phát cho session local với seq của node này
+    private void publishRemote(String companyCode, byte[] payload) {
+        try {
+            ChatMessage message = objectMapper.readValue(payload, ChatMessage.class);
+            message.setCompanyCode(companyCode);
+            publish(message, System.nanoTime(), false);
+        } catch (Exception e) {
+            log.error("Error parsing cluster message for companyCode {}: {}", companyCode, e.getMessage());
+        }
+    }
+
+    private void publish(ChatMessage original, long receivedAt, boolean local) {
+        ChatMessage message = original.copy();
+        companyTopicHub.publish(message.getCompanyCode(), message.getTimestamp(), (epoch, seq) -> {
+            message.setEpoch(epoch);
+            message.setSeq(seq);
+            OutboundFrame frame = chatMetrics.encode("chat", objectMapper, message, message.getSender(), false);
+            chatMetrics.recordFanOut("chat", receivedAt);
+            if (local) {
+                // Gửi đúng payload vừa encode, node nhận gán lại epoch/seq của nó
+                clusterBus.broadcast(companyTopicHub.getName(), message.getCompanyCode(), frame.payload());
+            }
+            return frame;
+        });
+        log.debug("Emitted message to topic for companyCode: {}, sender: {}", message.getCompanyCode(), message.getSender());
+    }
+
+    // Client gửi RESUME kèm epoch/seq cuối cùng đã nhận: phát lại phần bị lỡ rồi nối tiếp tin nhắn mới.
+    // Phần cũ hơn replay buffer được lấy từ DB theo timestamp cuối cùng client đã nhận.
+    private Flux<OutboundFrame> subscribe(ChatMessage first) {
+        String companyCode = first.getCompanyCode();
+        if (!"RESUME".equals(first.getAction()) || first.getSeq() == null) {
+            return companyTopicHub.subscribe(companyCode);
+        }
+        long epoch = first.getEpoch() != null ? first.getEpoch() : 0;
+        return companyTopicHub.resume(companyCode, epoch, first.getSeq())
+                .flatMapMany(resume -> {
+                    if (resume.isComplete()) {
+                        return resume.getFrames();
+                    }
+                    Flux<OutboundFrame> gap = chatMessageRepository
+                            .findGap(companyCode, first.getTimestamp(), resume.getOldestTimestamp(), resumeMaxDbMessages)
+                            .<OutboundFrame>handle((message, sink) -> {
+                                try {
+                                    sink.next(OutboundFrame.encode(objectMapper, message, message.getSender(), false));
+                                } catch (Exception e) {
+                                    log.error("Error serializing message: {}", e.getMessage());
+                                }
+                            })
+                            .onErrorResume(e -> {
+                                log.error("Error loading missed messages for companyCode {}: {}", companyCode, e.getMessage());
+                                return Flux.empty();
+                            });
+                    return Flux.concat(gap, resume.getFrames())
+                            .doFinally(signal -> resume.cancel());
                 });
     }
 }
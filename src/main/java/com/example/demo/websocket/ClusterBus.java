@@ -0,0 +1,31 @@
+package com.example.demo.websocket;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Carries messages published on one node to the other nodes of the cluster, so sessions connected
+ * to different replicas see each other's messages.
+ * <p>
+ * Messages are addressed by hub (the {@link TopicHub#getName()} they were published to) and topic.
+ * A node only receives the topics it has declared {@link #interest} in, and each message at most once.
+ */
+public interface ClusterBus {
+
+    /**
+     * Sends a message published on this node to every other node with subscribers for the topic.
+     * Must not block: called on the hub's shard thread.
+     *
+     * @param payload the encoded message, not written to afterwards
+     */
+    void broadcast(String hub, String topic, byte[] payload);
+
+    /**
+     * Receives the messages other nodes broadcast to {@code hub}. One listener per hub.
+     */
+    void listen(String hub, BiConsumer<String, byte[]> listener);
+
+    /**
+     * This node gained its first or lost its last local subscriber of a topic.
+     */
+    void interest(String hub, String topic, boolean subscribed);
+}
@@ -0,0 +1,190 @@
+package com.example.demo.websocket;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Queue of work keyed by tenant (companyCode or roomId) that hands items out by weighted deficit
+ * round robin instead of arrival order, so a tenant with a large backlog cannot make the others wait
+ * behind it.
+ * <p>
+ * Every key with queued items has a lane. Each round gives a lane {@code quantum * weight} items
+ * before moving on to the next one, and items of one key always come out in the order they were
+ * offered. Offers never lock; they are refused once the key has {@code keyQuota} items queued or
+ * the queue holds {@code capacity} items. Draining is serialized, and lanes that stay empty for
+ * {@code idleLaneNanos} are dropped by the drainer.
+ */
+public final class FairQueue<T> {
+
+    private final int quantum;
+    private final int keyQuota;
+    private final int capacity;
+    private final ToIntFunction<String> weights;
+    private final long idleLaneNanos;
+
+    private final Map<String, Lane<T>> lanes = new ConcurrentHashMap<>();
+    // Lanes with items, each at most once
+    private final ConcurrentLinkedQueue<Lane<T>> active = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Only touched by the drainer: the lane whose turn was cut short by the drain limit
+    private Lane<T> current;
+    private long lastSweep = System.nanoTime();
+
+    /**
+     * @param quantum       items a weight-1 key gets per round
+     * @param keyQuota      items one key may have queued
+     * @param capacity      items all keys may have queued
+     * @param weights       weight of a key, at least 1
+     * @param idleLaneNanos how long an empty lane is kept for its key
+     */
+    FairQueue(int quantum, int keyQuota, int capacity, ToIntFunction<String> weights, long idleLaneNanos) {
+        this.quantum = Math.max(1, quantum);
+        this.keyQuota = keyQuota > 0 ? keyQuota : Integer.MAX_VALUE;
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        this.weights = weights;
+        this.idleLaneNanos = idleLaneNanos;
+    }
+
+    /**
+     * Parses {@code key=weight,key=weight}; keys that are not listed weigh 1.
+     */
+    public static ToIntFunction<String> weights(String spec) {
+        Map<String, Integer> weights = Arrays.stream(spec.split(","))
+                .map(String::trim)
+                .filter(entry -> !entry.isEmpty())
+                .map(entry -> entry.split("=", 2))
+                .collect(Collectors.toUnmodifiableMap(
+                        entry -> entry[0].trim(),
+                        entry -> Math.max(1, Integer.parseInt(entry[1].trim()))));
+        return key -> weights.getOrDefault(key, 1);
+    }
+
+    /**
+     * @return false if the key is over its quota or the queue is full, and the item was not queued
+     */
+    boolean offer(String key, T item) {
+        if (size.get() >= capacity) {
+            return false;
+        }
+        while (true) {
+            Lane<T> lane = lanes.computeIfAbsent(key, k -> new Lane<>(Math.max(1, weights.applyAsInt(k))));
+            int queued = lane.queued.get();
+            if (queued < 0) {
+                // Dropped by the drainer after this lookup: the next one creates a fresh lane
+                lanes.remove(key, lane);
+                continue;
+            }
+            if (queued >= keyQuota) {
+                return false;
+            }
+            if (!lane.queued.compareAndSet(queued, queued + 1)) {
+                continue;
+            }
+            size.incrementAndGet();
+            lane.items.offer(item);
+            // Whoever takes the lane from empty puts it in the round
+            if (queued == 0) {
+                active.offer(lane);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hands at most {@code max} items to {@code consumer}, continuing the round where the last drain stopped.
+     * The consumer must not throw.
+     * <p>
+     * Callers already keep one drain at a time with their own flag (TopicHub's draining, the write-behind's
+     * flushing), so the monitor is uncontended and costs what a WIP flag would. It stays a lock rather than a
+     * try-and-skip flag because a drain that must empty the queue, like the write-behind's shutdown, has to
+     * wait for one in progress instead of seeing 0 and stopping. It also orders the drainer-only fields when
+     * consecutive drains run on different threads.
+     *
+     * @return the number of items handed out
+     */
+    synchronized int drain(int max, Consumer<T> consumer) {
+        int taken = 0;
+        while (taken < max) {
+            Lane<T> lane = current;
+            if (lane == null) {
+                lane = active.poll();
+                if (lane == null) {
+                    break;
+                }
+                lane.deficit += quantum * lane.weight;
+            }
+            int took = 0;
+            T item = null;
+            while (lane.deficit > 0 && taken < max && (item = lane.items.poll()) != null) {
+                lane.deficit--;
+                took++;
+                taken++;
+                consumer.accept(item);
+            }
+            size.addAndGet(-took);
+            int remaining = lane.queued.addAndGet(-took);
+            if (remaining == 0) {
+                // Out of the round until its next offer
+                lane.deficit = 0;
+                lane.idleSince = System.nanoTime();
+                current = null;
+            } else if (lane.deficit > 0 && item == null) {
+                // Counted but not in the lane yet: its producer is about to add it
+                current = null;
+                active.offer(lane);
+                break;
+            } else if (lane.deficit > 0) {
+                // Stopped by max: the lane keeps its turn for the next drain
+                current = lane;
+            } else {
+                current = null;
+                active.offer(lane);
+            }
+        }
+        sweepIdleLanes();
+        return taken;
+    }
+
+    int size() {
+        return Math.max(0, size.get());
+    }
+
+    /**
+     * Keys with a lane, queued items or not.
+     */
+    int keys() {
+        return lanes.size();
+    }
+
+    private void sweepIdleLanes() {
+        long now = System.nanoTime();
+        if (now - lastSweep < idleLaneNanos) {
+            return;
+        }
+        lastSweep = now;
+        // A lane is only dropped while empty; offers that still hold it see the -1 and look again
+        lanes.values().removeIf(lane -> now - lane.idleSince >= idleLaneNanos && lane.queued.compareAndSet(0, -1));
+    }
+
+    private static final class Lane<T> {
+
+        private final int weight;
+        private final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<>();
+        // Offered and not yet drained; -1 once dropped
+        private final AtomicInteger queued = new AtomicInteger();
+        // Drainer only
+        private int deficit;
+        private volatile long idleSince = System.nanoTime();
+
+        private Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.example.demo.websocket;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
@@ -14,48 +16,70 @@ import reactor.core.publisher.Sinks;
 @Slf4j
 public class GlobalChatWebSocketHandler implements WebSocketHandler {
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Sinks.Many<OutboundFrame> globalSink = Sinks.many().multicast().directBestEffort();
 
-    private final Sinks.Many<RawMessage> globalSink = Sinks.many().multicast().onBackpressureBuffer();
+    @Autowired
+    private SessionOutboxRegistry sessionOutboxRegistry;
+
+    @Autowired
+    private JsonFrameValidator jsonFrameValidator;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    // Token bucket theo session và theo người gửi, kiểm tra trước khi validate JSON
+    @Autowired
+    private IngressRateLimiter ingressRateLimiter;
 
     @Override
     public Mono<Void> handle(WebSocketSession session) {
         String sessionId = session.getId();
-        log.info("New connection: {}", sessionId);
-
-        // Nhận message và validate JSON
-        Flux<String> incoming = session.receive()
-                .map(WebSocketMessage::getPayloadAsText)
-                .flatMap(payload -> {
-                    if (isValidJson(payload)) {
-                        log.info("Valid JSON from {}: {}", sessionId, payload);
-                        globalSink.tryEmitNext(new RawMessage(sessionId, payload));
+        // Handshake đã xác thực JWT (AuthWebFilter), session chưa xác thực thì đóng
+        SessionIdentity identity = SessionIdentity.of(session);
+        if (identity == null) {
+            log.warn("Unauthenticated WebSocket session {}, closing", sessionId);
+            return session.close(CloseStatus.POLICY_VIOLATION);
+        }
+        log.info("New connection: {} ({})", sessionId, identity.sender());
+        Runnable sessionClosed = chatMetrics.sessionOpened("global", identity.companyCode());
+
+        // Nhận message và validate JSON trực tiếp trên bytes, không decode sang String
+        Flux<byte[]> incoming = session.receive()
+                .doOnNext(message -> chatMetrics.received("global"))
+                .transform(frames -> ingressRateLimiter.limit("global", session, identity, frames))
+                .flatMap(message -> {
+                    long receivedAt = System.nanoTime();
+                    DataBuffer buffer = message.getPayload();
+                    if (jsonFrameValidator.exceedsMaxSize(buffer.readableByteCount())) {
+                        log.warn("Oversized frame from {}: {} bytes", sessionId, buffer.readableByteCount());
                         return Mono.empty();
+                    }
+                    // Copy một lần duy nhất: buffer nhận vào được giải phóng sau khi xử lý xong
+                    byte[] payload = new byte[buffer.readableByteCount()];
+                    buffer.read(payload);
+                    JsonFrameValidator.Result result = jsonFrameValidator.validate(payload);
+                    if (result == JsonFrameValidator.Result.VALID) {
+                        log.debug("Valid JSON from {}: {} bytes", sessionId, payload.length);
+                        chatMetrics.emitted("global", "global", globalSink.tryEmitNext(new OutboundFrame(sessionId, false, payload)));
+                        chatMetrics.recordFanOut("global", receivedAt);
                     } else {
-                        log.warn("Invalid JSON from {}: {}", sessionId, payload);
+                        log.warn("Invalid JSON from {}: {} ({} bytes)", sessionId, result, payload.length);
                         // Có thể chọn: return session.close() để ngắt kết nối luôn
-                        return Mono.empty();
                     }
+                    return Mono.empty();
                 });
 
-        // Gửi lại JSON hợp lệ từ người khác
-        Flux<WebSocketMessage> outgoing = globalSink.asFlux()
-                .filter(msg -> !msg.senderId().equals(sessionId))
-                .map(msg -> session.textMessage(msg.payload()));
+        // Gửi lại JSON hợp lệ từ người khác, qua outbox có giới hạn của session
+        SessionOutbox outbox = sessionOutboxRegistry.open(session, "global");
+        Flux<WebSocketMessage> outgoing = outbox.relay(globalSink.asFlux().filter(frame -> frame.isVisibleTo(sessionId)))
+                .map(frame -> frame.toMessage(session))
+                .doOnNext(frame -> chatMetrics.sent("global"));
 
         return session.send(outgoing)
                 .and(incoming.then())
-                .doFinally(sig -> log.info("Session {} closed ({})", sessionId, sig));
-    }
-
-    private boolean isValidJson(String json) {
-        try {
-            objectMapper.readTree(json);
-            return true;
-        } catch (Exception e) {
-            return false;
-        }
+                .doFinally(sig -> {
+                    sessionClosed.run();
+                    log.info("Session {} closed ({})", sessionId, sig);
+                });
     }
-
-    private record RawMessage(String senderId, String payload) {}
-}
\ No newline at end of file
+}
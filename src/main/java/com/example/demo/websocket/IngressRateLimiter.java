@@ -0,0 +1,184 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets on the inbound frames of every WebSocket session, checked before a frame is parsed.
+ * <p>
+ * Each session has its own bucket, and all sessions of one sender (same companyCode and id) share
+ * another, so opening more connections does not raise a user's limit. A frame needs a token from both,
+ * and a frame refused by one bucket takes nothing from the other.
+ */
+@Component
+@Slf4j
+public class IngressRateLimiter {
+
+    /**
+     * What happens to a frame that finds no token.
+     */
+    public enum Policy {
+        /** Discard the frame. */
+        DROP,
+        /** Hold the frame, and stop reading the socket, until a token is due; drop it if that takes longer than max-delay-ms. */
+        DELAY,
+        /** Close the session. */
+        CLOSE
+    }
+
+    static final CloseStatus RATE_LIMITED = new CloseStatus(4029, "Rate limit exceeded");
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.ratelimit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${websocket.ratelimit.policy:DROP}")
+    private Policy policy;
+
+    @Value("${websocket.ratelimit.session.refill-per-second:50}")
+    private double sessionRefillPerSecond;
+
+    @Value("${websocket.ratelimit.session.burst:100}")
+    private int sessionBurst;
+
+    @Value("${websocket.ratelimit.sender.refill-per-second:100}")
+    private double senderRefillPerSecond;
+
+    @Value("${websocket.ratelimit.sender.burst:200}")
+    private int senderBurst;
+
+    @Value("${websocket.ratelimit.max-delay-ms:1000}")
+    private long maxDelayMs;
+
+    // Shared by the sessions of a sender while at least one is open
+    private final Map<String, SenderBucket> senderBuckets = new ConcurrentHashMap<>();
+    private final Map<String, Counter> throttledCounters = new ConcurrentHashMap<>();
+
+    private long maxDelayNanos;
+
+    @PostConstruct
+    public void init() {
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        log.info("Ingress rate limit: enabled={}, policy={}, session={}/s burst {}, sender={}/s burst {}, maxDelayMs={}",
+                enabled, policy, sessionRefillPerSecond, sessionBurst, senderRefillPerSecond, senderBurst, maxDelayMs);
+    }
+
+    /**
+     * Applies the session's and the sender's buckets to the frames received on {@code session}.
+     */
+    public Flux<WebSocketMessage> limit(String endpoint, WebSocketSession session, SessionIdentity identity,
+                                        Flux<WebSocketMessage> frames) {
+        if (!enabled) {
+            return frames;
+        }
+        String senderKey = identity.companyCode() + '/' + identity.sender();
+        return Flux.defer(() -> {
+            TokenBucket sessionBucket = new TokenBucket(sessionRefillPerSecond, sessionBurst);
+            TokenBucket senderBucket = openSender(senderKey);
+            Flux<WebSocketMessage> limited = switch (policy) {
+                case DROP -> frames.filter(frame -> acquire(endpoint, sessionBucket, senderBucket, 0) == 0);
+                case CLOSE -> frames.filter(frame -> {
+                    if (acquire(endpoint, sessionBucket, senderBucket, 0) == 0) {
+                        return true;
+                    }
+                    log.warn("Closing session {} of {}: rate limit exceeded", session.getId(), senderKey);
+                    session.close(RATE_LIMITED).subscribe();
+                    return false;
+                });
+                // No prefetch: the next frame is only requested once this one is handled, so the socket is not
+                // read while a frame waits and the client is slowed by TCP
+                case DELAY -> frames
+                        // The inbound releases a frame once it is delivered: hold it until the handler has read it
+                        .doOnNext(frame -> DataBufferUtils.retain(frame.getPayload()))
+                        .concatMap(frame -> {
+                            long wait = acquire(endpoint, sessionBucket, senderBucket, maxDelayNanos);
+                            if (wait < 0) {
+                                DataBufferUtils.release(frame.getPayload());
+                                return Mono.empty();
+                            }
+                            Mono<WebSocketMessage> ready = wait == 0
+                                    ? Mono.just(frame)
+                                    : Mono.delay(Duration.ofNanos(wait)).thenReturn(frame);
+                            return ready.doFinally(signal -> DataBufferUtils.release(frame.getPayload()));
+                        }, 0)
+                        .doOnDiscard(WebSocketMessage.class, frame -> DataBufferUtils.release(frame.getPayload()));
+            };
+            return limited.doFinally(signal -> closeSender(senderKey));
+        });
+    }
+
+    /**
+     * @return nanos until the frame may be handled (0 = now), or -1 if it is throttled
+     */
+    private long acquire(String endpoint, TokenBucket sessionBucket, TokenBucket senderBucket, long maxWaitNanos) {
+        long now = System.nanoTime();
+        long sessionWait = sessionBucket.acquire(now, maxWaitNanos);
+        if (sessionWait < 0) {
+            throttled(endpoint, "session").increment();
+            return -1;
+        }
+        long senderWait = senderBucket.acquire(now, maxWaitNanos);
+        if (senderWait < 0) {
+            // The frame is not handled, so it must not cost the session a token either
+            sessionBucket.refund();
+            throttled(endpoint, "sender").increment();
+            return -1;
+        }
+        long wait = Math.max(sessionWait, senderWait);
+        if (wait > 0) {
+            throttled(endpoint, "delayed").increment();
+        }
+        return wait;
+    }
+
+    private Counter throttled(String endpoint, String scope) {
+        return throttledCounters.computeIfAbsent(endpoint + '/' + scope, k -> Counter.builder("websocket.ratelimit.throttled")
+                .description("Inbound frames over a rate limit: dropped or closing the session by the session or sender bucket, or delayed")
+                .tag("endpoint", endpoint)
+                .tag("scope", scope)
+                .tag("policy", policy.name())
+                .register(meterRegistry));
+    }
+
+    private TokenBucket openSender(String senderKey) {
+        return senderBuckets.compute(senderKey, (k, bucket) -> {
+            if (bucket == null) {
+                bucket = new SenderBucket(new TokenBucket(senderRefillPerSecond, senderBurst));
+            }
+            bucket.sessions++;
+            return bucket;
+        }).bucket;
+    }
+
+    private void closeSender(String senderKey) {
+        senderBuckets.computeIfPresent(senderKey, (k, bucket) -> --bucket.sessions == 0 ? null : bucket);
+    }
+
+    // sessions is only touched inside compute, under the map's lock for the key
+    private static final class SenderBucket {
+        private final TokenBucket bucket;
+        private int sessions;
+
+        private SenderBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Checks that a frame is exactly one well-formed JSON value within the configured size and
+ * nesting depth.
+ * <p>
+ * The check walks the tokens of the raw UTF-8 bytes with a streaming parser and stops at the first
+ * problem. It builds no tree and decodes no field names or string values, so a valid frame costs
+ * one pass over its bytes and nothing to collect afterwards.
+ */
+@Component
+@Slf4j
+public class JsonFrameValidator {
+
+    public enum Result {
+        VALID, TOO_LARGE, TOO_DEEP, MALFORMED
+    }
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.json.max-frame-bytes:65536}")
+    private int maxFrameBytes;
+
+    @Value("${websocket.json.max-depth:32}")
+    private int maxDepth;
+
+    private JsonFactory jsonFactory;
+    private final Map<Result, Counter> counters = new EnumMap<>(Result.class);
+
+    @PostConstruct
+    public void init() {
+        jsonFactory = objectMapper.getFactory();
+        for (Result result : Result.values()) {
+            counters.put(result, Counter.builder("websocket.json.validated")
+                    .description("Inbound JSON frames by validation result")
+                    .tag("result", result.name().toLowerCase())
+                    .register(meterRegistry));
+        }
+        log.info("JSON frame validator: maxFrameBytes={}, maxDepth={}", maxFrameBytes, maxDepth);
+    }
+
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    /**
+     * Size check alone, for callers that want to reject a frame before copying it.
+     */
+    public boolean exceedsMaxSize(int length) {
+        if (length > maxFrameBytes) {
+            counters.get(Result.TOO_LARGE).increment();
+            return true;
+        }
+        return false;
+    }
+
+    public Result validate(byte[] json) {
+        Result result = check(json);
+        counters.get(result).increment();
+        return result;
+    }
+
+    private Result check(byte[] json) {
+        if (json.length > maxFrameBytes) {
+            return Result.TOO_LARGE;
+        }
+        try (JsonParser parser = jsonFactory.createParser(json, 0, json.length)) {
+            int depth = 0;
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return Result.MALFORMED;
+            }
+            do {
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    if (++depth > maxDepth) {
+                        return Result.TOO_DEEP;
+                    }
+                } else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    depth--;
+                }
+            } while (depth > 0 && (token = parser.nextToken()) != null);
+
+            // Root value finished: anything but trailing whitespace is a second value
+            return depth == 0 && parser.nextToken() == null ? Result.VALID : Result.MALFORMED;
+        } catch (IOException e) {
+            return Result.MALFORMED;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.demo.websocket;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Cluster of one: the topic hubs already deliver to every session of this JVM, so there is
+ * nobody else to send to. The default when cluster.mode is not set.
+ */
+public class LocalClusterBus implements ClusterBus {
+
+    @Override
+    public void broadcast(String hub, String topic, byte[] payload) {
+        // No other node
+    }
+
+    @Override
+    public void listen(String hub, BiConsumer<String, byte[]> listener) {
+        // Nothing ever arrives
+    }
+
+    @Override
+    public void interest(String hub, String topic, boolean subscribed) {
+        // No other node to tell
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether /chat and /room messages are broadcast before or after they are stored, and
+ * sends the optional ACK/NACK frame back to the sender once the store has succeeded or failed.
+ * <p>
+ * websocket.delivery.persist-lag measures how long a message waited between being accepted
+ * and being stored. In EMIT_FIRST mode this is the window in which receivers have seen a message
+ * that a crash would lose.
+ */
+@Component
+@Slf4j
+public class MessageDelivery {
+
+    public enum Mode {
+        /** Broadcast once the message is stored (write-behind batch for /chat, journal for /room). */
+        PERSIST_FIRST,
+        /** Broadcast once /chat's write-behind queue took the message; /room always waits for its journal. */
+        EMIT_FIRST
+    }
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.delivery.mode:PERSIST_FIRST}")
+    private Mode mode;
+
+    @Value("${websocket.delivery.ack:false}")
+    private boolean ackEnabled;
+
+    private final Map<String, Timer> persistLagTimers = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        log.info("Message delivery: mode={}, ack={}", mode, ackEnabled);
+    }
+
+    public boolean isEmitFirst() {
+        return mode == Mode.EMIT_FIRST;
+    }
+
+    /**
+     * Records the persist lag of a message accepted at {@code acceptedAtNanos} (System.nanoTime).
+     */
+    public void recordPersisted(String endpoint, long acceptedAtNanos) {
+        persistLagTimers.computeIfAbsent(endpoint, k -> Timer.builder("websocket.delivery.persist.lag")
+                        .description("Time from accepting a message to having it stored")
+                        .tag("endpoint", k)
+                        .tag("mode", mode.name())
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record(System.nanoTime() - acceptedAtNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Tells the sender its message is stored. Does nothing unless websocket.delivery.ack is on.
+     */
+    public void ack(SessionOutbox outbox, String clientMsgId, long timestamp) {
+        send(outbox, new Ack("ACK", clientMsgId, timestamp, null));
+    }
+
+    /**
+     * Tells the sender its message could not be stored. In EMIT_FIRST mode a /chat message refused by the
+     * write-behind queue has not been broadcast either, but one whose write failed afterwards has already
+     * been seen by the receivers. A /room message refused by its journal is never broadcast.
+     */
+    public void nack(SessionOutbox outbox, String clientMsgId, long timestamp, String reason) {
+        send(outbox, new Ack("NACK", clientMsgId, timestamp, reason));
+    }
+
+    private void send(SessionOutbox outbox, Ack ack) {
+        if (!ackEnabled) {
+            return;
+        }
+        try {
+            // Straight into the sender's outbox, not through the topic
+            outbox.offer(new OutboundFrame(null, true, objectMapper.writeValueAsBytes(ack)));
+        } catch (Exception e) {
+            log.error("Error sending {} to session {}: {}", ack.action(), outbox.getSessionId(), e.getMessage());
+        }
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    record Ack(String action, String clientMsgId, long timestamp, String reason) {}
+}
@@ -0,0 +1,165 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message serialized once when it is emitted to a topic.
+ * <p>
+ * Every recipient session wraps the same byte array into its own frame, so fan-out to N sessions
+ * costs one Jackson encode and N small buffer wrappers instead of N encodes and N Strings.
+ * The array is never written to after encoding, which is what makes sharing it safe.
+ * <p>
+ * The payload is JSON. The first session that negotiated {@link WireFormat#CBOR} transcodes it, and
+ * every other CBOR session of the topic shares that copy, so a room with JSON and CBOR clients costs
+ * at most one encode per format.
+ * <p>
+ * A {@link #batch} packs several frames into one array frame (a JSON array, or an indefinite-length
+ * CBOR array) by chaining the shared payloads, without copying them.
+ */
+public final class OutboundFrame {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
+    private final String sender;
+    private final boolean echoToSender;
+    private final byte[] payload;
+    private final String coalesceKey;
+    // Frames of a batch, null for a single message
+    private final OutboundFrame[] parts;
+
+    // Written once under this
+    private volatile byte[] cborPayload;
+
+    /**
+     * @param sender       sender of the message, used to skip echoing it back
+     * @param echoToSender whether the sender's own sessions receive the frame too
+     * @param payload      UTF-8 JSON of the message
+     * @param coalesceKey  frames with the same key may replace each other in a full outbox, null if never
+     */
+    public OutboundFrame(String sender, boolean echoToSender, byte[] payload, String coalesceKey) {
+        this(sender, echoToSender, payload, coalesceKey, null);
+    }
+
+    public OutboundFrame(String sender, boolean echoToSender, byte[] payload) {
+        this(sender, echoToSender, payload, null);
+    }
+
+    private OutboundFrame(String sender, boolean echoToSender, byte[] payload, String coalesceKey, OutboundFrame[] parts) {
+        this.sender = sender;
+        this.echoToSender = echoToSender;
+        this.payload = payload;
+        this.coalesceKey = coalesceKey;
+        this.parts = parts;
+    }
+
+    /**
+     * One frame carrying {@code frames} as an array, for a session that already filtered them.
+     */
+    public static OutboundFrame batch(List<OutboundFrame> frames) {
+        return new OutboundFrame(null, true, null, null, frames.toArray(new OutboundFrame[0]));
+    }
+
+    public static OutboundFrame encode(ObjectMapper objectMapper, Object message, String sender, boolean echoToSender)
+            throws JsonProcessingException {
+        return new OutboundFrame(sender, echoToSender, objectMapper.writeValueAsBytes(message));
+    }
+
+    public String sender() {
+        return sender;
+    }
+
+    public boolean echoToSender() {
+        return echoToSender;
+    }
+
+    /**
+     * The JSON payload, null for a batch.
+     */
+    public byte[] payload() {
+        return payload;
+    }
+
+    public String coalesceKey() {
+        return coalesceKey;
+    }
+
+    public boolean isVisibleTo(String recipient) {
+        return echoToSender || !sender.equals(recipient);
+    }
+
+    /**
+     * The payload in {@code format}, encoded on first use and shared afterwards.
+     */
+    public byte[] payload(WireFormat format) {
+        if (format == WireFormat.JSON) {
+            return payload;
+        }
+        byte[] cbor = cborPayload;
+        if (cbor == null) {
+            synchronized (this) {
+                cbor = cborPayload;
+                if (cbor == null) {
+                    cbor = transcodeToCbor(payload);
+                    cborPayload = cbor;
+                }
+            }
+        }
+        return cbor;
+    }
+
+    /**
+     * Wraps the shared JSON payload for one session without copying it.
+     */
+    public WebSocketMessage toMessage(WebSocketSession session) {
+        return toMessage(session, WireFormat.JSON);
+    }
+
+    /**
+     * Wraps the shared payload in the session's wire format without copying it.
+     */
+    public WebSocketMessage toMessage(WebSocketSession session, WireFormat format) {
+        DataBufferFactory bufferFactory = session.bufferFactory();
+        if (parts == null) {
+            return new WebSocketMessage(format.getMessageType(), bufferFactory.wrap(payload(format)));
+        }
+        List<DataBuffer> buffers = new ArrayList<>(parts.length * 2 + 1);
+        buffers.add(bufferFactory.wrap(format.arrayStart()));
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0 && format.arraySeparator().length > 0) {
+                buffers.add(bufferFactory.wrap(format.arraySeparator()));
+            }
+            buffers.add(bufferFactory.wrap(parts[i].payload(format)));
+        }
+        buffers.add(bufferFactory.wrap(format.arrayEnd()));
+        return new WebSocketMessage(format.getMessageType(), bufferFactory.join(buffers));
+    }
+
+    // Token by token, without building the message or a tree in between
+    private static byte[] transcodeToCbor(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        try (JsonParser parser = JSON_FACTORY.createParser(json);
+             JsonGenerator generator = CBOR_FACTORY.createGenerator(out)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
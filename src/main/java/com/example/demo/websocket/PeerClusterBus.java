@@ -0,0 +1,507 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.netty.Connection;
+import reactor.netty.DisposableServer;
+import reactor.netty.tcp.TcpClient;
+import reactor.netty.tcp.TcpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Full mesh of nodes over TCP: every node listens on cluster.bind-host:cluster.port and connects to
+ * each address in cluster.peers. A node sends only on the connections it opened and receives only on the ones it
+ * accepted, so the link from A to B carries A's interests to B and A's messages for those interests.
+ * <p>
+ * A node's id is the address the other nodes list it under in cluster.peers. A message is sent only
+ * to the nodes that declared interest in its topic, and batched per peer: up to cluster.batch-size
+ * records, or whatever cluster.batch-interval-ms collected, go out as one length-prefixed frame.
+ * Message ids grow per origin node, across restarts too, and a receiver drops any id it has recently
+ * seen from that origin (a node listed twice under different addresses, for instance).
+ * <p>
+ * Nothing is retransmitted: messages for a peer that is down or too slow are counted and dropped,
+ * and reconnecting sessions fill the gap from the database like after any other outage.
+ * <p>
+ * An accepted connection must open with a HELLO from one of the nodes in cluster.peers, signed with
+ * HMAC-SHA256 under cluster.secret over the node id and the sender's clock; any other connection is
+ * closed before it can declare interests or inject messages. The links are not encrypted, so keep
+ * them on a private network.
+ */
+@Slf4j
+public class PeerClusterBus implements ClusterBus {
+
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final byte HELLO = 0;
+    private static final byte MESSAGE = 1;
+    private static final byte INTEREST = 2;
+    private static final String HMAC = "HmacSHA256";
+    // How far the clock in a HELLO may be from ours, which also bounds replaying a captured one
+    private static final long HELLO_MAX_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final String nodeId;
+    private final String bindHost;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<String> peerIds;
+    private final int batchSize;
+    private final Duration batchInterval;
+    private final int queueCapacity;
+    private final Duration reconnectDelay;
+
+    // Ids start from the clock so they keep growing after a restart, like TopicHub epochs
+    private final AtomicLong messageIds = new AtomicLong(System.currentTimeMillis() << 20);
+    private final Map<String, BiConsumer<String, byte[]>> listeners = new ConcurrentHashMap<>();
+    // hub -> topic -> (hub, topic) record, for the topics this node has subscribers for
+    private final Map<String, Map<String, Interest>> localInterest = new ConcurrentHashMap<>();
+    // hub -> topic -> ids of the nodes that have subscribers for it
+    private final Map<String, Map<String, Set<String>>> remoteInterest = new ConcurrentHashMap<>();
+    // origin node -> ids recently received from it
+    private final Map<String, ReceivedWindow> lastReceived = new ConcurrentHashMap<>();
+
+    private final Counter sentCounter;
+    private final Counter receivedCounter;
+    private final Counter duplicateCounter;
+    private final Counter droppedCounter;
+
+    private DisposableServer server;
+
+    /**
+     * @param bindHost      address to listen on
+     * @param secret        shared by every node, signs the HELLO that opens a link
+     * @param peerAddresses host:port of every other node, exactly as their cluster.node-id
+     */
+    public PeerClusterBus(String nodeId, String bindHost, int port, String secret, List<String> peerAddresses,
+                          int batchSize, Duration batchInterval, int queueCapacity, Duration reconnectDelay,
+                          MeterRegistry meterRegistry) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("cluster.secret must be set in peer mode");
+        }
+        this.nodeId = nodeId;
+        this.bindHost = bindHost;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+        this.batchSize = batchSize;
+        this.batchInterval = batchInterval;
+        this.queueCapacity = queueCapacity;
+        this.reconnectDelay = reconnectDelay;
+        for (String address : peerAddresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port, got " + address);
+            }
+            peers.add(new Peer(address, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        peerIds = peers.stream().map(peer -> peer.nodeId).collect(Collectors.toUnmodifiableSet());
+
+        sentCounter = Counter.builder("cluster.bus.messages")
+                .description("Messages sent to or received from other nodes")
+                .tag("direction", "out")
+                .register(meterRegistry);
+        receivedCounter = Counter.builder("cluster.bus.messages")
+                .description("Messages sent to or received from other nodes")
+                .tag("direction", "in")
+                .register(meterRegistry);
+        duplicateCounter = Counter.builder("cluster.bus.duplicates")
+                .description("Messages received again from the same origin and dropped")
+                .register(meterRegistry);
+        droppedCounter = Counter.builder("cluster.bus.dropped")
+                .description("Messages not sent because the peer was down or its queue was full")
+                .register(meterRegistry);
+        Gauge.builder("cluster.bus.peers", peers, list -> list.stream().filter(Peer::isConnected).count())
+                .description("Peers this node is connected to")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        server = TcpServer.create()
+                .host(bindHost)
+                .port(port)
+                .doOnConnection(PeerClusterBus::addCodec)
+                .handle((in, out) -> {
+                    // Id of the node on the other end, known once its HELLO arrived
+                    String[] origin = new String[1];
+                    // Reading stops, and the connection closes, at the first frame that fails authentication
+                    return in.receive()
+                            .takeWhile(frame -> receive(frame, origin))
+                            .doOnError(e -> log.warn("Closing cluster connection from {}: unreadable frame: {}",
+                                    origin[0], e.toString()))
+                            .doFinally(signal -> {
+                                if (origin[0] != null) {
+                                    log.info("Cluster node {} disconnected", origin[0]);
+                                    forgetInterests(origin[0]);
+                                }
+                            })
+                            .then();
+                })
+                .bindNow();
+        peers.forEach(Peer::connect);
+        log.info("Cluster node {} listening on {}:{}, peers {}", nodeId, bindHost, server.port(), peerIds);
+    }
+
+    public void shutdown() {
+        peers.forEach(Peer::close);
+        if (server != null) {
+            server.disposeNow();
+        }
+    }
+
+    @Override
+    public void broadcast(String hub, String topic, byte[] payload) {
+        Map<String, Set<String>> topics = remoteInterest.get(hub);
+        Set<String> nodes = topics != null ? topics.get(topic) : null;
+        if (nodes == null) {
+            return;
+        }
+        Message message = new Message(messageIds.incrementAndGet(), hub, topic, payload);
+        for (Peer peer : peers) {
+            if (nodes.contains(peer.nodeId)) {
+                if (peer.send(message)) {
+                    sentCounter.increment();
+                } else {
+                    droppedCounter.increment();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void listen(String hub, BiConsumer<String, byte[]> listener) {
+        listeners.put(hub, listener);
+    }
+
+    @Override
+    public void interest(String hub, String topic, boolean subscribed) {
+        Map<String, Interest> topics = localInterest.computeIfAbsent(hub, k -> new ConcurrentHashMap<>());
+        Interest interest = new Interest(hub, topic, subscribed);
+        if (subscribed) {
+            topics.put(topic, interest);
+        } else {
+            topics.remove(topic);
+        }
+        peers.forEach(peer -> peer.send(interest));
+    }
+
+    /**
+     * @return false if the connection must be closed: no valid HELLO first, or an unreadable record
+     */
+    private boolean receive(ByteBuf frame, String[] origin) {
+        int count = frame.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = frame.readByte();
+            if (origin[0] == null && type != HELLO) {
+                log.warn("Closing cluster connection: record type {} before HELLO", type);
+                return false;
+            }
+            switch (type) {
+                case HELLO -> {
+                    String node = readString(frame);
+                    long timestamp = frame.readLong();
+                    byte[] mac = new byte[frame.readUnsignedShort()];
+                    frame.readBytes(mac);
+                    if (!authenticate(node, timestamp, mac)) {
+                        return false;
+                    }
+                    origin[0] = node;
+                    log.info("Cluster node {} connected", origin[0]);
+                }
+                case INTEREST -> {
+                    String hub = readString(frame);
+                    String topic = readString(frame);
+                    boolean subscribed = frame.readBoolean();
+                    updateInterest(origin[0], hub, topic, subscribed);
+                }
+                case MESSAGE -> {
+                    long id = frame.readLong();
+                    String hub = readString(frame);
+                    String topic = readString(frame);
+                    byte[] payload = new byte[frame.readInt()];
+                    frame.readBytes(payload);
+                    deliver(origin[0], id, hub, topic, payload);
+                }
+                default -> {
+                    log.error("Unknown cluster record type {} from {}, dropping the rest of the frame", type, origin[0]);
+                    return true;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean authenticate(String node, long timestamp, byte[] mac) {
+        if (!peerIds.contains(node)) {
+            log.warn("Closing cluster connection: HELLO from {}, which is not in cluster.peers", node);
+            return false;
+        }
+        if (Math.abs(System.currentTimeMillis() - timestamp) > HELLO_MAX_SKEW_MILLIS) {
+            log.warn("Closing cluster connection: HELLO from {} is {} ms off this node's clock", node,
+                    System.currentTimeMillis() - timestamp);
+            return false;
+        }
+        if (!MessageDigest.isEqual(mac, sign(node, timestamp))) {
+            log.warn("Closing cluster connection: HELLO from {} is not signed with cluster.secret", node);
+            return false;
+        }
+        return true;
+    }
+
+    private byte[] sign(String node, long timestamp) {
+        try {
+            // Mac is not thread-safe; one per HELLO is cheap enough
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            mac.update(node.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(Long.toString(timestamp).getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign cluster HELLO", e);
+        }
+    }
+
+    private void deliver(String origin, long id, String hub, String topic, byte[] payload) {
+        if (!firstTime(origin, id)) {
+            duplicateCounter.increment();
+            return;
+        }
+        receivedCounter.increment();
+        BiConsumer<String, byte[]> listener = listeners.get(hub);
+        if (listener != null) {
+            listener.accept(topic, payload);
+        }
+    }
+
+    private boolean firstTime(String origin, long id) {
+        return lastReceived.computeIfAbsent(origin, k -> new ReceivedWindow()).firstTime(id);
+    }
+
+    private void updateInterest(String node, String hub, String topic, boolean subscribed) {
+        Map<String, Set<String>> topics = remoteInterest.computeIfAbsent(hub, k -> new ConcurrentHashMap<>());
+        if (subscribed) {
+            topics.compute(topic, (k, nodes) -> {
+                Set<String> updated = nodes != null ? nodes : ConcurrentHashMap.newKeySet();
+                updated.add(node);
+                return updated;
+            });
+        } else {
+            topics.computeIfPresent(topic, (k, nodes) -> {
+                nodes.remove(node);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+    }
+
+    // The node resends all of its interests when it reconnects
+    private void forgetInterests(String node) {
+        remoteInterest.forEach((hub, topics) -> topics.keySet().forEach(topic -> updateInterest(node, hub, topic, false)));
+    }
+
+    private static void addCodec(Connection connection) {
+        connection.addHandlerLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_BYTES, 0, 4, 0, 4))
+                .addHandlerLast(new LengthFieldPrepender(4));
+    }
+
+    private ByteBuf encode(ByteBufAllocator allocator, List<Item> items) {
+        ByteBuf frame = allocator.buffer();
+        frame.writeInt(items.size());
+        for (Item item : items) {
+            item.write(frame);
+        }
+        return frame;
+    }
+
+    private static void writeString(ByteBuf buffer, String value) {
+        buffer.writeShort(ByteBufUtil.utf8Bytes(value));
+        buffer.writeCharSequence(value, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuf buffer) {
+        return buffer.readCharSequence(buffer.readUnsignedShort(), StandardCharsets.UTF_8).toString();
+    }
+
+    private sealed interface Item permits Hello, Interest, Message {
+        void write(ByteBuf buffer);
+    }
+
+    private record Hello(String nodeId, long timestamp, byte[] mac) implements Item {
+        @Override
+        public void write(ByteBuf buffer) {
+            buffer.writeByte(HELLO);
+            writeString(buffer, nodeId);
+            buffer.writeLong(timestamp);
+            buffer.writeShort(mac.length);
+            buffer.writeBytes(mac);
+        }
+    }
+
+    private record Interest(String hub, String topic, boolean subscribed) implements Item {
+        @Override
+        public void write(ByteBuf buffer) {
+            buffer.writeByte(INTEREST);
+            writeString(buffer, hub);
+            writeString(buffer, topic);
+            buffer.writeBoolean(subscribed);
+        }
+    }
+
+    private record Message(long id, String hub, String topic, byte[] payload) implements Item {
+        @Override
+        public void write(ByteBuf buffer) {
+            buffer.writeByte(MESSAGE);
+            buffer.writeLong(id);
+            writeString(buffer, hub);
+            writeString(buffer, topic);
+            buffer.writeInt(payload.length);
+            buffer.writeBytes(payload);
+        }
+    }
+
+    /**
+     * Which of the last WINDOW ids of one origin have arrived. Shards draw ids and enqueue them
+     * concurrently, so a peer can receive them slightly out of order; ids older than the window
+     * count as seen.
+     */
+    private static final class ReceivedWindow {
+
+        private static final int WINDOW = 4096;
+
+        // Guarded by this
+        private final long[] bits = new long[WINDOW / 64];
+        private long highest;
+
+        private synchronized boolean firstTime(long id) {
+            if (id > highest) {
+                if (id - highest >= WINDOW) {
+                    Arrays.fill(bits, 0);
+                } else {
+                    for (long skipped = highest + 1; skipped < id; skipped++) {
+                        bits[index(skipped)] &= ~mask(skipped);
+                    }
+                }
+                highest = id;
+                bits[index(id)] |= mask(id);
+                return true;
+            }
+            if (highest - id >= WINDOW || (bits[index(id)] & mask(id)) != 0) {
+                return false;
+            }
+            bits[index(id)] |= mask(id);
+            return true;
+        }
+
+        private static int index(long id) {
+            return (int) ((id % WINDOW) >>> 6);
+        }
+
+        private static long mask(long id) {
+            return 1L << (id & 63);
+        }
+    }
+
+    /**
+     * Outgoing link to one peer, reconnected after reconnect-delay whenever it drops.
+     */
+    private final class Peer {
+
+        private final String nodeId;
+        private final String host;
+        private final int port;
+        private volatile FluxSink<Item> sink;
+        private Disposable connection;
+
+        private Peer(String nodeId, String host, int port) {
+            this.nodeId = nodeId;
+            this.host = host;
+            this.port = port;
+        }
+
+        private boolean isConnected() {
+            return sink != null;
+        }
+
+        // FluxSink.next is safe from any thread, every shard can send at once
+        private boolean send(Item item) {
+            FluxSink<Item> current = sink;
+            if (current == null) {
+                return false;
+            }
+            current.next(item);
+            return true;
+        }
+
+        private void connect() {
+            connection = Mono.defer(() -> TcpClient.create()
+                            .host(host)
+                            .port(port)
+                            .doOnConnected(PeerClusterBus::addCodec)
+                            // Fair mode: the other one can lose a record emitted while its timer flushes,
+                            // such as the interests that follow HELLO
+                            .handle((in, out) -> out.send(items().bufferTimeout(batchSize, batchInterval, true)
+                                    .map(batch -> encode(out.alloc(), batch))))
+                            .connect())
+                    .flatMap(Connection::onDispose)
+                    .onErrorResume(e -> {
+                        log.debug("Cluster peer {} unreachable: {}", nodeId, e.getMessage());
+                        return Mono.empty();
+                    })
+                    .then(Mono.delay(reconnectDelay))
+                    .repeat()
+                    .subscribe();
+        }
+
+        // HELLO and every current interest first, then whatever is sent while the link is up
+        private Flux<Item> items() {
+            return Flux.<Item>create(created -> {
+                        sink = created;
+                        created.onDispose(() -> {
+                            // A reconnect may already have replaced it
+                            if (sink == created) {
+                                sink = null;
+                            }
+                        });
+                        // An interest change racing this snapshot can leave the peer with a stale topic:
+                        // it then sends messages nobody here is subscribed to, which the hub ignores
+                        long now = System.currentTimeMillis();
+                        created.next(new Hello(PeerClusterBus.this.nodeId, now, sign(PeerClusterBus.this.nodeId, now)));
+                        localInterest.values().forEach(topics -> topics.values().forEach(created::next));
+                        log.info("Connected to cluster peer {}", nodeId);
+                    })
+                    .onBackpressureBuffer(queueCapacity, dropped -> droppedCounter.increment(),
+                            BufferOverflowStrategy.DROP_OLDEST);
+        }
+
+        private void close() {
+            if (connection != null) {
+                connection.dispose();
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.example.demo.websocket;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
 import org.springframework.web.reactive.socket.WebSocketHandler;
 import org.springframework.web.reactive.socket.WebSocketMessage;
 import org.springframework.web.reactive.socket.WebSocketSession;
@@ -11,79 +14,149 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 @Slf4j
 public class RoomChatWebSocketHandler implements WebSocketHandler {
 
     @Autowired
-    private RoomMessageRepository RoomMessageRepository;
+    private RoomMessageJournal roomMessageJournal;
+
+    @Autowired
+    private RoomMessageRepository roomMessageRepository;
 
     @Autowired
     private ObjectMapper objectMapper;
 
-    // Store Sinks for each roomId
-    private final Map<String, Sinks.Many<RoomMessage>> roomSinks = new ConcurrentHashMap<>();
+    @Autowired
+    private SessionOutboxRegistry sessionOutboxRegistry;
+
+    // Broadcast-before or after-journal, and the sender's ACK/NACK
+    @Autowired
+    private MessageDelivery messageDelivery;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    @Autowired
+    private WireCodec wireCodec;
+
+    // Per-session and per-sender token buckets, checked before a frame is parsed
+    @Autowired
+    private IngressRateLimiter ingressRateLimiter;
+
+    // Room topics, sharded across event loops
+    @Autowired
+    private TopicHub roomTopicHub;
+
+    // Carries room messages to the other nodes with members of the room
+    @Autowired
+    private ClusterBus clusterBus;
+
+    // Upper bound of messages loaded from the database when the replay buffer cannot cover a resume
+    @Value("${websocket.resume.max-db-messages:500}")
+    private int resumeMaxDbMessages;
+
+    // Rooms one connection may be joined to at the same time
+    @Value("${websocket.room.max-rooms-per-session:100}")
+    private int maxRoomsPerSession;
+
+    @PostConstruct
+    public void init() {
+        clusterBus.listen(roomTopicHub.getName(), this::publishRemote);
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return WireFormat.SUB_PROTOCOLS;
+    }
 
     @Override
     public Mono<Void> handle(WebSocketSession session) {
         log.info("New WebSocket connection: {}", session.getId());
 
-        // Sinks to capture roomId and sender
-        Sinks.Many<String> roomIdSink = Sinks.many().multicast().onBackpressureBuffer();
-        Flux<String> roomIdFlux = roomIdSink.asFlux().take(1).cache(); // Capture first roomId
+        // Identity verified from the JWT at handshake; sender is never taken from the frames
+        SessionIdentity identity = SessionIdentity.of(session);
+        if (identity == null) {
+            log.warn("Unauthenticated WebSocket session {}, closing", session.getId());
+            return session.close(CloseStatus.POLICY_VIOLATION);
+        }
+
+        Runnable sessionClosed = chatMetrics.sessionOpened("room", identity.companyCode());
+        // JSON or CBOR, as negotiated through the subprotocol at handshake
+        WireFormat format = WireFormat.of(session);
 
-        Sinks.Many<String> senderSink = Sinks.many().multicast().onBackpressureBuffer();
-        Flux<String> senderFlux = senderSink.asFlux().take(1).cache(); // Capture first sender
+        // One connection can be in any number of rooms: every CREATE/JOIN adds a room stream,
+        // LEAVE ends it, and all of them are merged into the session's single send pipeline
+        Sinks.Many<Flux<OutboundFrame>> roomStreams = Sinks.many().unicast().onBackpressureBuffer();
+        RoomSubscriptions rooms = new RoomSubscriptions();
+
+        // Each session drains its own bounded outbox, so a slow client cannot hold back the room
+        SessionOutbox outbox = sessionOutboxRegistry.open(session, "room", true);
 
         // Handle incoming messages
         Flux<RoomMessage> incoming = session.receive()
-                .map(WebSocketMessage::getPayloadAsText)
-                .doOnNext(text -> log.info("Received message: {}", text))
-                .flatMap(text -> {
+                .doOnNext(frame -> chatMetrics.received("room"))
+                .transform(frames -> ingressRateLimiter.limit("room", session, identity, frames))
+                .flatMap(frame -> {
                     try {
-                        RoomMessage message = objectMapper.readValue(text, RoomMessage.class);
-                        String action = message.getAction(); // "CREATE", "JOIN", or "CHAT"
-                        if (message.getSender() == null || message.getRoomId() == null || action == null) {
-                            log.warn("Invalid message: sender, roomId, or action missing");
+                        RoomMessage message = wireCodec.read(format, frame, RoomMessage.class);
+                        log.debug("Received message: {}", message);
+                        String action = message.getAction(); // "CREATE", "JOIN", "LEAVE" or "CHAT"
+                        if (message.getRoomId() == null || action == null) {
+                            log.warn("Invalid message: roomId or action missing");
                             return Mono.empty();
                         }
+                        message.setSender(identity.sender());
+                        message.setCompanyCode(identity.companyCode());
 
-                        // Emit roomId and sender for CREATE or JOIN actions
+                        // Subscribe the connection to the room on CREATE or JOIN
                         if ("CREATE".equals(action) || "JOIN".equals(action)) {
-                            roomIdSink.tryEmitNext(message.getRoomId());
-                            senderSink.tryEmitNext(message.getSender());
-                            log.info("{} room request: roomId={}, sender={}", action, message.getRoomId(), message.getSender());
-                            if ("CREATE".equals(action)) {
-                                // Initialize sink for new room
-                                roomSinks.computeIfAbsent(message.getRoomId(), k -> {
-                                    log.info("Created new sink for roomId: {}", k);
-                                    return Sinks.many().multicast().onBackpressureBuffer();
-                                });
+                            Sinks.Empty<Void> leave = rooms.join(message.getRoomId(), maxRoomsPerSession);
+                            if (leave == null) {
+                                log.warn("Ignoring {} of room {} by session {}: already joined or {} rooms joined",
+                                        action, message.getRoomId(), session.getId(), rooms.size());
+                                return Mono.empty();
                             }
+                            // A JOIN carrying epoch/seq/timestamp of the last message seen resumes from there
+                            Join join = new Join(message.getRoomId(), message.getSender(),
+                                    message.getEpoch(), message.getSeq(), message.getTimestamp());
+                            chatMetrics.emitted("room", "rooms", roomStreams.tryEmitNext(subscribe(join)
+                                    // Filter messages to avoid sending sender's own messages back
+                                    .filter(outbound -> outbound.isVisibleTo(join.sender()))
+                                    .takeUntilOther(leave.asMono())));
+                            log.info("{} room request: roomId={}, sender={}, seq={}",
+                                    action, message.getRoomId(), message.getSender(), message.getSeq());
                             // Notify client of successful action
                             message.setTimestamp(System.currentTimeMillis());
-                            return RoomMessageRepository.save(message)
-                                    .doOnSuccess(saved -> log.info("Saved {} action: roomId={}, sender={}",
+                            return roomMessageJournal.append(message)
+                                    .doOnSuccess(saved -> log.info("Journaled {} action: roomId={}, sender={}",
                                             action, saved.getRoomId(), saved.getSender()));
+                        } else if ("LEAVE".equals(action)) {
+                            if (rooms.leave(message.getRoomId())) {
+                                log.info("Left room: roomId={}, sender={}", message.getRoomId(), message.getSender());
+                            }
+                            return Mono.empty();
                         } else if ("CHAT".equals(action)) {
-                            // Handle chat messages
+                            // Handle chat messages: by default fan out as soon as the message is journaled,
+                            // the journal drainer writes it to room_message in the background
                             message.setTimestamp(System.currentTimeMillis());
-                            return RoomMessageRepository.save(message)
+                            long acceptedAt = System.nanoTime();
+                            // EMIT_FIRST too: the append is only a copy into the mapped segment, and a message
+                            // refused by a full journal must not have been broadcast already
+                            return roomMessageJournal.append(message)
                                     .doOnSuccess(saved -> {
-                                        log.info("Saved chat message: {} from {}", saved.getContent(), saved.getSender());
-                                        // Emit message to room's sink
-                                        Sinks.Many<RoomMessage> sink = roomSinks.get(message.getRoomId());
-                                        if (sink != null) {
-                                            sink.tryEmitNext(saved);
-                                            log.info("Emitted chat message to roomId: {}, sender: {}",
-                                                    message.getRoomId(), saved.getSender());
-                                        } else {
-                                            log.warn("No sink found for roomId: {}", message.getRoomId());
-                                        }
-                                    });
+                                        log.debug("Journaled chat message: {} from {}", saved.getContent(), saved.getSender());
+                                        messageDelivery.recordPersisted("room", acceptedAt);
+                                        publish(saved, acceptedAt);
+                                        messageDelivery.ack(outbox, saved.getClientMsgId(), saved.getTimestamp());
+                                    })
+                                    .doOnError(e -> messageDelivery.nack(outbox, message.getClientMsgId(),
+                                            message.getTimestamp(), e.getMessage()));
                         } else {
                             log.warn("Unknown action: {}", action);
                             return Mono.empty();
@@ -96,38 +169,14 @@ public class RoomChatWebSocketHandler implements WebSocketHandler {
                 .doOnError(e -> log.error("Error in incoming stream: {}", e.getMessage()))
                 .onErrorContinue((e, obj) -> log.warn("Skipping invalid message: {}", e.getMessage()));
 
-        // Send messages to clients in the same room
-        Flux<WebSocketMessage> outgoing = roomIdFlux
-                .doOnNext(roomId -> {
-                    roomSinks.computeIfAbsent(roomId, k -> {
-                        log.info("Created new sink for roomId: {} (from outgoing stream)", k);
-                        return Sinks.many().multicast().onBackpressureBuffer();
-                    });
-                })
-                .flatMap(roomId -> senderFlux.flatMap(sender -> {
-                    Sinks.Many<RoomMessage> sink = roomSinks.get(roomId);
-                    if (sink == null) {
-                        log.warn("No sink found for roomId: {}", roomId);
-                        return Flux.empty();
-                    }
-                    // Filter messages to avoid sending sender's own messages back
-                    return sink.asFlux()
-                            .filter(message -> !"CHAT".equals(message.getAction()) || !message.getSender().equals(sender))
-                            .doOnNext(message -> log.info("Filtering message from {} for sender {}: action={}",
-                                    message.getSender(), sender, message.getAction()));
-                }))
-                .map(message -> {
-                    try {
-                        String serialized = objectMapper.writeValueAsString(message);
-                        log.info("Sending message to client: {}", serialized);
-                        return serialized;
-                    } catch (Exception e) {
-                        log.error("Error serializing message: {}", e.getMessage());
-                        return "";
-                    }
-                })
-                .filter(str -> !str.isEmpty())
-                .map(session::textMessage)
+        // Send messages of every joined room to the client
+        Flux<OutboundFrame> frames = roomStreams.asFlux()
+                .flatMap(roomFrames -> roomFrames, Integer.MAX_VALUE);
+
+        Flux<WebSocketMessage> outgoing = outbox.relay(frames)
+                // Reuse the payload encoded at emit time instead of encoding per session
+                .map(frame -> frame.toMessage(session, format))
+                .doOnNext(frame -> chatMetrics.sent("room"))
                 .doOnError(e -> log.error("Error in outgoing stream: {}", e.getMessage()))
                 .onErrorContinue((e, obj) -> log.warn("Skipping error in outgoing stream: {}", e.getMessage()));
 
@@ -136,17 +185,119 @@ public class RoomChatWebSocketHandler implements WebSocketHandler {
                 .doOnError(e -> log.error("WebSocket error, closing session: {}", e.getMessage()))
                 .doOnTerminate(() -> {
                     log.info("WebSocket session terminated: {}", session.getId());
-                    roomIdSink.tryEmitComplete();
-                    senderSink.tryEmitComplete();
-                    // Clean up sinks if no subscribers remain
-                    roomIdFlux.subscribe(roomId -> {
-                        Sinks.Many<RoomMessage> sink = roomSinks.get(roomId);
-                        if (sink != null && sink.currentSubscriberCount() == 0) {
-                            roomSinks.remove(roomId);
-                            sink.tryEmitComplete();
-                            log.info("Removed sink for roomId: {}", roomId);
-                        }
-                    });
+                    rooms.leaveAll();
+                    roomStreams.tryEmitComplete();
+                    sessionClosed.run();
+                    // The hub evicts a room topic once it has been idle for idle-topic-ttl
+                });
+    }
+
+    // Publishes to the room's topic, serialized once for every session
+    private void publish(RoomMessage message, long receivedAt) {
+        publish(message, receivedAt, true);
+    }
+
+    // A message from another node, already journaled there: only fanned out here, with this node's seq
+    private void publishRemote(String roomId, byte[] payload) {
+        try {
+            RoomMessage message = objectMapper.readValue(payload, RoomMessage.class);
+            message.setRoomId(roomId);
+            publish(message, System.nanoTime(), false);
+        } catch (Exception e) {
+            log.error("Error parsing cluster message for roomId {}: {}", roomId, e.getMessage());
+        }
+    }
+
+    private void publish(RoomMessage original, long receivedAt, boolean local) {
+        RoomMessage message = original.copy();
+        roomTopicHub.publish(message.getRoomId(), message.getTimestamp(), (epoch, seq) -> {
+            message.setEpoch(epoch);
+            message.setSeq(seq);
+            OutboundFrame frame = chatMetrics.encode("room", objectMapper, message, message.getSender(), false);
+            chatMetrics.recordFanOut("room", receivedAt);
+            if (local) {
+                // The payload just encoded; the receiving node assigns its own epoch/seq
+                clusterBus.broadcast(roomTopicHub.getName(), message.getRoomId(), frame.payload());
+            }
+            return frame;
+        });
+        log.debug("Emitted chat message to roomId: {}, sender: {}", message.getRoomId(), message.getSender());
+    }
+
+    // Replays what the client missed since (epoch, seq) and continues with live messages.
+    // Anything older than the replay buffer comes from room_message, starting after the client's last timestamp.
+    private Flux<OutboundFrame> subscribe(Join join) {
+        if (join.seq() == null) {
+            return roomTopicHub.subscribe(join.roomId());
+        }
+        long epoch = join.epoch() != null ? join.epoch() : 0;
+        return roomTopicHub.resume(join.roomId(), epoch, join.seq())
+                .flatMapMany(resume -> {
+                    if (resume.isComplete()) {
+                        return resume.getFrames();
+                    }
+                    long after = join.lastTimestamp() != null ? join.lastTimestamp() : 0;
+                    Flux<OutboundFrame> gap = roomMessageRepository
+                            .findGap(join.roomId(), after, resume.getOldestTimestamp(), resumeMaxDbMessages)
+                            .<OutboundFrame>handle((message, sink) -> {
+                                try {
+                                    sink.next(OutboundFrame.encode(objectMapper, message, message.getSender(), false));
+                                } catch (Exception e) {
+                                    log.error("Error serializing message: {}", e.getMessage());
+                                }
+                            })
+                            .onErrorResume(e -> {
+                                log.error("Error loading missed messages for roomId {}: {}", join.roomId(), e.getMessage());
+                                return Flux.empty();
+                            });
+                    return Flux.concat(gap, resume.getFrames())
+                            .doFinally(signal -> resume.cancel());
                 });
     }
+
+    private record Join(String roomId, String sender, Long epoch, Long seq, Long lastTimestamp) {}
+
+    /**
+     * Rooms joined by one session, each with the signal that ends its stream.
+     */
+    private static final class RoomSubscriptions {
+
+        // Guarded by this; most sessions are in a handful of rooms
+        private final Map<String, Sinks.Empty<Void>> rooms = new HashMap<>(4);
+
+        // Null when the room is already joined or the session is at its limit
+        private synchronized Sinks.Empty<Void> join(String roomId, int maxRooms) {
+            if (rooms.containsKey(roomId) || rooms.size() >= maxRooms) {
+                return null;
+            }
+            Sinks.Empty<Void> leave = Sinks.empty();
+            rooms.put(roomId, leave);
+            return leave;
+        }
+
+        private boolean leave(String roomId) {
+            Sinks.Empty<Void> leave;
+            synchronized (this) {
+                leave = rooms.remove(roomId);
+            }
+            if (leave == null) {
+                return false;
+            }
+            leave.tryEmitEmpty();
+            return true;
+        }
+
+        private void leaveAll() {
+            List<Sinks.Empty<Void>> left;
+            synchronized (this) {
+                left = new ArrayList<>(rooms.values());
+                rooms.clear();
+            }
+            left.forEach(Sinks.Empty::tryEmitEmpty);
+        }
+
+        private synchronized int size() {
+            return rooms.size();
+        }
+    }
 }
\ No newline at end of file
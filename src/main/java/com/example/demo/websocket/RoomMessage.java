@@ -15,8 +15,38 @@ public class RoomMessage {
     private String sender;
     private String content;
     private String roomId;
+    // Company of the sender, stamped by the server; sender ids are only unique within a company
+    private String companyCode;
     private Long timestamp;
 
     @Transient
     private String action;
+
+    // Position of the message in the room topic, assigned by the server on publish.
+    // A JOIN carrying them resumes from that position.
+    @Transient
+    private Long epoch;
+
+    @Transient
+    private Long seq;
+
+    // Client-chosen id, echoed in the ACK/NACK frame when websocket.delivery.ack is on
+    @Transient
+    private String clientMsgId;
+
+    // Copy handed to the topic: the shard sets epoch/seq on it while the journal may still be reading the original
+    public RoomMessage copy() {
+        RoomMessage copy = new RoomMessage();
+        copy.id = id;
+        copy.sender = sender;
+        copy.content = content;
+        copy.roomId = roomId;
+        copy.companyCode = companyCode;
+        copy.timestamp = timestamp;
+        copy.action = action;
+        copy.epoch = epoch;
+        copy.seq = seq;
+        copy.clientMsgId = clientMsgId;
+        return copy;
+    }
 }
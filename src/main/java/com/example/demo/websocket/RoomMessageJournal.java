@@ -0,0 +1,593 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.r2dbc.spi.R2dbcDataIntegrityViolationException;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal for room messages.
+ * <p>
+ * Messages are accepted as soon as they are written into the current segment, and a background
+ * drainer replays the segments into room_message. Each record is {@code [length][crc32][json]};
+ * a zero length or a bad checksum marks the end of the valid data in a segment. The drain position
+ * is kept in a checkpoint file, so on restart every segment that was not fully drained is replayed
+ * from where the drainer stopped. Replay is at-least-once: a crash after a batch is inserted but before
+ * its checkpoint is written replays that batch, so room_message can hold those rows twice.
+ * <p>
+ * Mapped writes reach the disk only through msync: a sealed segment is forced once, the active one
+ * once force-bytes are pending or force-interval-ms have passed since the last force.
+ * <p>
+ * Content longer than the room_message.content column is refused at append. A batch the database
+ * refuses for a data integrity violation is replayed again right away, one record at a time, and the
+ * record refused on its own is moved to the dead-letter file (same record format) for manual replay.
+ * Any other failure is retried with exponential backoff, one record at a time so that a single bad
+ * record cannot hold back the others; a record still refused after drain-max-retries, or one that
+ * cannot be read back, is dead-lettered too. New messages are refused while the undrained segments
+ * would exceed max-bytes.
+ */
+@Component
+@Slf4j
+public class RoomMessageJournal {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String DEAD_LETTER_FILE = "dead-letter.log";
+    private static final int HEADER_BYTES = 8;
+    // room_message.content is VARCHAR(255), counted in characters
+    static final int MAX_CONTENT_LENGTH = 255;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private DatabaseClient databaseClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${room.journal.dir:./data/room-journal}")
+    private String journalDir;
+
+    @Value("${room.journal.segment-size-bytes:16777216}")
+    private int segmentSize;
+
+    @Value("${room.journal.drain-batch-size:500}")
+    private int drainBatchSize;
+
+    @Value("${room.journal.drain-interval-ms:50}")
+    private long drainIntervalMs;
+
+    @Value("${room.journal.drain-max-retries:10}")
+    private int drainMaxRetries;
+
+    @Value("${room.journal.drain-max-backoff-ms:30000}")
+    private long drainMaxBackoffMs;
+
+    // Undrained segments, the active one included, may take at most this much disk
+    @Value("${room.journal.max-bytes:1073741824}")
+    private long maxBytes;
+
+    @Value("${room.journal.force-bytes:1048576}")
+    private int forceBytes;
+
+    @Value("${room.journal.force-interval-ms:100}")
+    private long forceIntervalMs;
+
+    private Path directory;
+
+    // Undrained segments by index, the last one is the segment being written
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Written under this, read by the drainer for msync
+    private volatile Segment writeSegment;
+
+    // Only written by the drainer thread
+    private Segment readSegment;
+    private volatile int readOffset;
+    private FileChannel checkpointChannel;
+    private FileChannel deadLetterChannel;
+
+    // Only used by the drainer thread: failures of the batch at readOffset, and when to retry it
+    private int failedAttempts;
+    private long retryAt;
+    // Records of readSegment before this offset are replayed one at a time: their batch had a record
+    // the database refuses
+    private int isolateUntil;
+    private long lastForce;
+
+    private Scheduler drainScheduler;
+    private Disposable drainer;
+    private Disposable forcer;
+
+    private Counter appendedCounter;
+    private Counter rejectedCounter;
+    private Counter deadLetteredCounter;
+    private Timer drainTimer;
+
+    @PostConstruct
+    public void init() throws IOException {
+        checkSchema();
+        directory = Path.of(journalDir);
+        Files.createDirectories(directory);
+        checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        deadLetterChannel = FileChannel.open(directory.resolve(DEAD_LETTER_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        recover();
+
+        long nextIndex = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        writeSegment = Segment.create(segmentPath(nextIndex), nextIndex, segmentSize);
+        segments.put(nextIndex, writeSegment);
+        if (readSegment == null) {
+            readSegment = writeSegment;
+            readOffset = 0;
+        }
+
+        appendedCounter = Counter.builder("room.journal.appended")
+                .description("Room messages written to the journal")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("room.journal.rejected")
+                .description("Room messages refused because the journal reached max-bytes")
+                .register(meterRegistry);
+        deadLetteredCounter = Counter.builder("room.journal.dead-lettered")
+                .description("Room messages moved to the dead-letter file instead of room_message")
+                .register(meterRegistry);
+        drainTimer = Timer.builder("room.journal.drain")
+                .description("Latency of replaying one journal batch into room_message")
+                .register(meterRegistry);
+        Gauge.builder("room.journal.segments", segments, Map::size)
+                .description("Journal segments not yet drained")
+                .register(meterRegistry);
+        Gauge.builder("room.journal.backlog.bytes", this, RoomMessageJournal::backlogBytes)
+                .description("Journal bytes written but not yet replayed into room_message")
+                .register(meterRegistry);
+
+        drainScheduler = Schedulers.newSingle("room-journal-drainer");
+        drainer = Flux.interval(Duration.ofMillis(drainIntervalMs), drainScheduler)
+                .onBackpressureDrop()
+                .concatMap(tick -> drain(), 1)
+                .subscribe();
+        // Separate from the drainer, which skips ticks while an insert is in flight
+        lastForce = System.nanoTime();
+        forcer = Flux.interval(Duration.ofMillis(drainIntervalMs), drainScheduler)
+                .subscribe(tick -> forceIfDue());
+        log.info("Room journal opened at {}: {} segment(s), writing to segment {}",
+                directory, segments.size(), writeSegment.index);
+    }
+
+    /**
+     * Writes the message to the journal. Once the returned Mono completes the message is
+     * on disk (in the page cache) and will reach room_message even if the process dies.
+     * Fails with IllegalStateException, at subscription, when the journal is full, and with
+     * IllegalArgumentException when the content is longer than {@value #MAX_CONTENT_LENGTH} characters.
+     */
+    public Mono<RoomMessage> append(RoomMessage message) {
+        return Mono.fromCallable(() -> {
+            String content = message.getContent();
+            if (content != null && content.codePointCount(0, content.length()) > MAX_CONTENT_LENGTH) {
+                throw new IllegalArgumentException("Message content is longer than " + MAX_CONTENT_LENGTH + " characters");
+            }
+            append(objectMapper.writeValueAsBytes(message));
+            appendedCounter.increment();
+            return message;
+        });
+    }
+
+    private synchronized void append(byte[] payload) throws IOException {
+        int recordSize = HEADER_BYTES + payload.length;
+        if (recordSize > segmentSize) {
+            throw new IllegalArgumentException("Message too large for journal segment: " + payload.length + " bytes");
+        }
+        if (segmentSize - writeSegment.writePosition < recordSize) {
+            if ((long) (segments.size() + 1) * segmentSize > maxBytes) {
+                rejectedCounter.increment();
+                throw new IllegalStateException("Room journal is full: " + segments.size() + " segments not yet drained");
+            }
+            writeSegment.sealed = true;
+            long nextIndex = writeSegment.index + 1;
+            writeSegment = Segment.create(segmentPath(nextIndex), nextIndex, segmentSize);
+            segments.put(nextIndex, writeSegment);
+            log.info("Rolled room journal over to segment {}", nextIndex);
+        }
+        writeSegment.write(payload);
+    }
+
+    /**
+     * Replays at most one batch starting at the drain position. A failed batch is retried from
+     * the same position once its backoff has passed.
+     */
+    private Mono<Void> drain() {
+        if (failedAttempts > 0 && System.nanoTime() - retryAt < 0) {
+            return Mono.empty();
+        }
+        if (readSegment.committed == readOffset) {
+            advanceIfDrained();
+            return Mono.empty();
+        }
+
+        // After a failure, one record at a time until one goes through, or past the refused record
+        int limit = failedAttempts > 0 || readOffset < isolateUntil ? 1 : drainBatchSize;
+        List<RoomMessage> batch = new ArrayList<>(limit);
+        List<byte[]> payloads = new ArrayList<>(limit);
+        int offset = readOffset;
+        int committed = readSegment.committed;
+        ByteBuffer buffer = readSegment.buffer;
+        while (offset < committed && batch.size() < limit) {
+            int length = buffer.getInt(offset);
+            byte[] payload = new byte[length];
+            buffer.get(offset + HEADER_BYTES, payload);
+            try {
+                batch.add(objectMapper.readValue(payload, RoomMessage.class));
+                payloads.add(payload);
+            } catch (IOException e) {
+                log.error("Dead-lettering unreadable journal record in segment {}: {}", readSegment.index, e.getMessage());
+                if (!deadLetter(payload)) {
+                    // Retried from this record on a later tick
+                    break;
+                }
+            }
+            offset += HEADER_BYTES + length;
+        }
+
+        int nextOffset = offset;
+        long start = System.nanoTime();
+        return insertBatch(batch)
+                .publishOn(drainScheduler)
+                .doOnSuccess(rows -> {
+                    failedAttempts = 0;
+                    drained(nextOffset);
+                })
+                .onErrorResume(e -> {
+                    replayFailed(payloads, nextOffset, e);
+                    return Mono.empty();
+                })
+                .doFinally(signal -> drainTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS))
+                .then();
+    }
+
+    private void replayFailed(List<byte[]> payloads, int nextOffset, Throwable e) {
+        // Retrying cannot make the database accept this data
+        boolean refused = e instanceof DataIntegrityViolationException || e instanceof R2dbcDataIntegrityViolationException;
+        if (refused && payloads.size() > 1) {
+            log.warn("Room journal batch of {} from segment {} refused, replaying it one record at a time: {}",
+                    payloads.size(), readSegment.index, e.getMessage());
+            isolateUntil = nextOffset;
+            return;
+        }
+        failedAttempts++;
+        if (payloads.size() == 1 && (refused || failedAttempts > drainMaxRetries)) {
+            log.error("Dead-lettering room message from segment {} after {} failed attempt(s): {}",
+                    readSegment.index, failedAttempts, e.getMessage());
+            if (deadLetter(payloads.get(0))) {
+                failedAttempts = 0;
+                drained(nextOffset);
+                return;
+            }
+        }
+        long backoffMs = Math.min(drainIntervalMs << Math.min(failedAttempts, 20), drainMaxBackoffMs);
+        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+        log.error("Error replaying {} room messages from segment {} (attempt {}), retrying in {} ms: {}",
+                payloads.size(), readSegment.index, failedAttempts, backoffMs, e.getMessage());
+    }
+
+    private void drained(int nextOffset) {
+        readOffset = nextOffset;
+        writeCheckpoint(readSegment.index, readOffset);
+        advanceIfDrained();
+    }
+
+    // Appended in the segment's record format and forced before the record is skipped
+    private boolean deadLetter(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt(crc(payload))
+                .put(payload)
+                .flip();
+        try {
+            while (record.hasRemaining()) {
+                deadLetterChannel.write(record);
+            }
+            deadLetterChannel.force(false);
+            deadLetteredCounter.increment();
+            return true;
+        } catch (IOException e) {
+            log.error("Could not write the room journal dead-letter file: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void forceIfDue() {
+        long now = System.nanoTime();
+        boolean intervalDue = now - lastForce >= TimeUnit.MILLISECONDS.toNanos(forceIntervalMs);
+        for (Segment segment : segments.values()) {
+            int pending = segment.committed - segment.forced;
+            if (pending > 0 && (segment.sealed || intervalDue || pending >= forceBytes)) {
+                segment.force();
+                lastForce = now;
+            }
+        }
+    }
+
+    private void advanceIfDrained() {
+        if (!readSegment.sealed || readOffset < readSegment.committed) {
+            return;
+        }
+        Segment drained = readSegment;
+        Map.Entry<Long, Segment> next = segments.higherEntry(drained.index);
+        if (next == null) {
+            return;
+        }
+        readSegment = next.getValue();
+        readOffset = 0;
+        isolateUntil = 0;
+        writeCheckpoint(readSegment.index, 0);
+        segments.remove(drained.index);
+        drained.delete();
+        log.info("Room journal segment {} drained and deleted", drained.index);
+    }
+
+    private Mono<Long> insertBatch(List<RoomMessage> batch) {
+        if (batch.isEmpty()) {
+            return Mono.just(0L);
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO room_message (sender, content, room_id, company_code, timestamp) VALUES ");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("(:sender").append(i)
+                    .append(", :content").append(i)
+                    .append(", :roomId").append(i)
+                    .append(", :companyCode").append(i)
+                    .append(", :timestamp").append(i).append(')');
+        }
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
+        for (int i = 0; i < batch.size(); i++) {
+            RoomMessage message = batch.get(i);
+            spec = bind(spec, "sender" + i, message.getSender(), String.class);
+            spec = bind(spec, "content" + i, message.getContent(), String.class);
+            spec = bind(spec, "roomId" + i, message.getRoomId(), String.class);
+            spec = bind(spec, "companyCode" + i, message.getCompanyCode(), String.class);
+            spec = bind(spec, "timestamp" + i, message.getTimestamp(), Long.class);
+        }
+        return spec.fetch().rowsUpdated();
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec, String name,
+                                                          Object value, Class<?> type) {
+        return value != null ? spec.bind(name, value) : spec.bindNull(name, type);
+    }
+
+    /**
+     * Refuses to start against a room_message table without company_code (sql/room-message-company.sql):
+     * every drained batch would fail, and room history would be closed to everyone. A table or database
+     * that cannot be reached yet is only logged, as the schema is created outside the application.
+     */
+    private void checkSchema() {
+        Boolean hasColumn = databaseClient.sql("SELECT company_code FROM room_message WHERE 1 = 0")
+                .then()
+                .thenReturn(true)
+                // Either the column or the table is missing
+                .onErrorResume(e -> databaseClient.sql("SELECT 1 FROM room_message WHERE 1 = 0")
+                        .then()
+                        .thenReturn(false))
+                .timeout(Duration.ofSeconds(10))
+                .onErrorResume(e -> {
+                    log.warn("Could not check the room_message schema: {}", e.getMessage());
+                    return Mono.just(true);
+                })
+                .block();
+        if (!Boolean.TRUE.equals(hasColumn)) {
+            throw new IllegalStateException("room_message has no company_code column: apply sql/room-message-company.sql");
+        }
+    }
+
+    private void recover() throws IOException {
+        long checkpointSegment = -1;
+        int checkpointOffset = 0;
+        if (checkpointChannel.size() >= 12) {
+            ByteBuffer checkpoint = ByteBuffer.allocate(12);
+            checkpointChannel.read(checkpoint, 0);
+            checkpoint.flip();
+            checkpointSegment = checkpoint.getLong();
+            checkpointOffset = checkpoint.getInt();
+        }
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)).toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long index = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            if (index < checkpointSegment) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            Segment segment = Segment.open(file, index);
+            segment.sealed = true;
+            segments.put(index, segment);
+        }
+
+        if (!segments.isEmpty()) {
+            readSegment = segments.firstEntry().getValue();
+            readOffset = readSegment.index == checkpointSegment ? Math.min(checkpointOffset, readSegment.committed) : 0;
+            log.info("Replaying room journal from segment {} offset {}", readSegment.index, readOffset);
+        }
+    }
+
+    private void writeCheckpoint(long segmentIndex, int offset) {
+        ByteBuffer checkpoint = ByteBuffer.allocate(12).putLong(segmentIndex).putInt(offset).flip();
+        try {
+            checkpointChannel.write(checkpoint, 0);
+            checkpointChannel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private double backlogBytes() {
+        long backlog = 0;
+        for (Segment segment : segments.values()) {
+            backlog += segment.committed;
+        }
+        return backlog - readOffset;
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (drainScheduler != null) {
+            // Cancelled from the drainer thread: cancelling from another one interrupts it,
+            // and an interrupted checkpoint write closes the checkpoint channel
+            Mono.fromRunnable(() -> {
+                        drainer.dispose();
+                        forcer.dispose();
+                    })
+                    .subscribeOn(drainScheduler)
+                    .timeout(Duration.ofSeconds(5))
+                    .onErrorResume(e -> Mono.empty())
+                    .block();
+            drainScheduler.dispose();
+        }
+        // Whatever is not drained stays in the segments and is replayed on the next start
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+        checkpointChannel.close();
+        deadLetterChannel.close();
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static final class Segment {
+
+        private final long index;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        // Writer-only position, published to the drainer through committed
+        private int writePosition;
+        private volatile int committed;
+        private volatile boolean sealed;
+        // Drainer-only: end of the data already forced to disk
+        private int forced;
+
+        private Segment(long index, Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.index = index;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path path, long index, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(index, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        static Segment open(Path path, long index) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(index, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segment.writePosition = segment.scanValidEnd();
+            segment.committed = segment.writePosition;
+            segment.forced = segment.writePosition;
+            return segment;
+        }
+
+        void write(byte[] payload) {
+            int position = writePosition;
+            buffer.putInt(position + 4, crc(payload));
+            buffer.put(position + HEADER_BYTES, payload);
+            // Length goes last so a torn record is never seen as complete
+            buffer.putInt(position, payload.length);
+            writePosition = position + HEADER_BYTES + payload.length;
+            committed = writePosition;
+        }
+
+        // Stops at the first empty, truncated or corrupted record
+        private int scanValidEnd() {
+            int position = 0;
+            int limit = buffer.capacity();
+            while (position + HEADER_BYTES <= limit) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_BYTES + length > limit) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(position + HEADER_BYTES, payload);
+                if (crc(payload) != buffer.getInt(position + 4)) {
+                    break;
+                }
+                position += HEADER_BYTES + length;
+            }
+            return position;
+        }
+
+        void force() {
+            int end = committed;
+            buffer.force(forced, end - forced);
+            forced = end;
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Could not delete drained journal segment {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
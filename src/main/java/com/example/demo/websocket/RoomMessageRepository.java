@@ -1,8 +1,41 @@
 package com.example.demo.websocket;
 
+import org.springframework.data.r2dbc.repository.Query;
 import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.data.repository.query.Param;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface RoomMessageRepository extends R2dbcRepository<RoomMessage, String> {
 
-}
\ No newline at end of file
+    // Newest history page / page older than the (timestamp, id) cursor, served by index (room_id, timestamp, id).
+    // room_id is in the ORDER BY so planners that do not drop the equality column (H2) walk the index instead of sorting
+    String LATEST_PAGE_QUERY = "SELECT * FROM room_message WHERE room_id = :roomId " +
+            "ORDER BY room_id DESC, timestamp DESC, id DESC LIMIT :limit";
+    String PAGE_BEFORE_QUERY = "SELECT * FROM room_message WHERE room_id = :roomId " +
+            "AND timestamp <= :beforeTimestamp AND (timestamp < :beforeTimestamp OR id < :beforeId) " +
+            "ORDER BY room_id DESC, timestamp DESC, id DESC LIMIT :limit";
+
+    @Query(LATEST_PAGE_QUERY)
+    Flux<RoomMessage> findLatestPage(@Param("roomId") String roomId, @Param("limit") int limit);
+
+    @Query(PAGE_BEFORE_QUERY)
+    Flux<RoomMessage> findPageBefore(@Param("roomId") String roomId,
+                                     @Param("beforeTimestamp") long beforeTimestamp,
+                                     @Param("beforeId") int beforeId,
+                                     @Param("limit") int limit);
+
+    // Whether the user created, joined or wrote to the room: CREATE and JOIN are journaled like messages.
+    // Served by index (room_id, company_code, sender)
+    @Query("SELECT 1 FROM room_message WHERE room_id = :roomId " +
+            "AND company_code = :companyCode AND sender = :sender LIMIT 1")
+    Mono<Integer> findMembership(@Param("roomId") String roomId, @Param("companyCode") String companyCode,
+                                 @Param("sender") String sender);
+
+    // Messages missed while disconnected: at most `limit` of the newest in (after, before), oldest first
+    @Query("SELECT * FROM (SELECT * FROM room_message WHERE room_id = :roomId " +
+            "AND timestamp > :after AND timestamp < :before ORDER BY timestamp DESC, id DESC LIMIT :limit) gap " +
+            "ORDER BY timestamp, id")
+    Flux<RoomMessage> findGap(@Param("roomId") String roomId, @Param("after") long after,
+                              @Param("before") long before, @Param("limit") int limit);
+}
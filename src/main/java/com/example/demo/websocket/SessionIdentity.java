@@ -0,0 +1,20 @@
+package com.example.demo.websocket;
+
+import com.example.demo.auth.AuthConstant;
+import com.example.demo.user.UserModel;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+/**
+ * Who is on the other end of a WebSocket session, as authenticated from the JWT at handshake.
+ * The sender and company of every message come from here, never from the frame.
+ */
+public record SessionIdentity(String sender, String companyCode) {
+
+    /**
+     * Null when the handshake was not authenticated, which only happens if the endpoint is made public again.
+     */
+    public static SessionIdentity of(WebSocketSession session) {
+        UserModel user = (UserModel) session.getAttributes().get(AuthConstant.AUTH_USER);
+        return user == null ? null : new SessionIdentity(user.getId(), user.getCompanyCode());
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded outbound queue of one WebSocket session.
+ * <p>
+ * Topic sinks push into the outbox without waiting, and the session's send pipeline pulls from it
+ * at its own pace. A stalled client therefore only fills its own queue; what happens when that
+ * queue is full is decided by the {@link OverflowPolicy}.
+ * <p>
+ * With a max batch above one, a frame that finds the session idle still goes out at once, but frames
+ * arriving within batch-window of the last write wait for the window to close and leave together as
+ * one {@link OutboundFrame#batch} of up to max-batch frames. A burst then costs one frame and write per
+ * window instead of one per message, and quiet sessions see no added latency.
+ */
+@Slf4j
+public class SessionOutbox {
+
+    public enum OverflowPolicy {
+        /** Evict the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new frame. */
+        DROP_NEWEST,
+        /** Replace the queued frame with the same coalesce key, otherwise evict the oldest. */
+        COALESCE,
+        /** Discard the new frame and close the session after max-overflows overflows. */
+        DISCONNECT
+    }
+
+    static final CloseStatus SLOW_CONSUMER = new CloseStatus(4008, "Slow consumer");
+    // The stream of the session ended early, e.g. its resume buffer overflowed: reconnect and resume
+    static final CloseStatus RESUME_REQUIRED = new CloseStatus(4009, "Resume required");
+
+    private final WebSocketSession session;
+    private final String endpoint;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int maxOverflows;
+    private final Counter droppedCounter;
+    private final Runnable onClose;
+    private final int maxBatch;
+    private final long batchWindowNanos;
+    private final DistributionSummary batchSizes;
+
+    // Guarded by this
+    private final ArrayDeque<Entry> queue;
+
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile FluxSink<OutboundFrame> downstream;
+
+    // Written under this
+    private volatile long dropped;
+    private volatile int overflows;
+    private volatile boolean disconnected;
+
+    // Only touched by the drain loop, except flushDue which the window timer sets
+    private long lastWriteAt;
+    private boolean flushScheduled;
+    private volatile boolean flushDue;
+
+    SessionOutbox(WebSocketSession session, String endpoint, int capacity, OverflowPolicy policy, int maxOverflows,
+                  Counter droppedCounter, Runnable onClose) {
+        this(session, endpoint, capacity, policy, maxOverflows, droppedCounter, onClose, 1, Duration.ZERO, null);
+    }
+
+    SessionOutbox(WebSocketSession session, String endpoint, int capacity, OverflowPolicy policy, int maxOverflows,
+                  Counter droppedCounter, Runnable onClose, int maxBatch, Duration batchWindow,
+                  DistributionSummary batchSizes) {
+        this.session = session;
+        this.endpoint = endpoint;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.maxOverflows = maxOverflows;
+        this.droppedCounter = droppedCounter;
+        this.onClose = onClose;
+        this.maxBatch = maxBatch;
+        this.batchWindowNanos = batchWindow.toNanos();
+        this.batchSizes = batchSizes;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+        // nanoTime has an arbitrary origin: a new session must count as idle, whatever it is
+        this.lastWriteAt = System.nanoTime() - batchWindowNanos;
+    }
+
+    /**
+     * Relays {@code source} through this outbox. The source is subscribed with unbounded demand
+     * when the returned Flux is subscribed, and cancelled together with it. If the source fails,
+     * the session is closed with {@link #RESUME_REQUIRED}: it would otherwise stay open and receive nothing.
+     */
+    public Flux<OutboundFrame> relay(Flux<OutboundFrame> source) {
+        return Flux.create(sink -> {
+            downstream = sink;
+            Disposable upstream = source.subscribe(this::offer, e -> {
+                log.warn("Outbound source of {} session {} failed, closing it for the client to resume: {}",
+                        endpoint, session.getId(), e.getMessage());
+                session.close(RESUME_REQUIRED).subscribe();
+            });
+            sink.onRequest(n -> drain());
+            sink.onDispose(() -> {
+                upstream.dispose();
+                synchronized (this) {
+                    queue.clear();
+                }
+                onClose.run();
+            });
+        });
+    }
+
+    public void offer(OutboundFrame frame) {
+        if (disconnected) {
+            return;
+        }
+        boolean closeSession = false;
+        synchronized (this) {
+            if (queue.size() < capacity) {
+                queue.offer(new Entry(frame, System.nanoTime()));
+            } else {
+                dropped++;
+                droppedCounter.increment();
+                overflows++;
+                if (policy == OverflowPolicy.DISCONNECT && overflows >= maxOverflows && !disconnected) {
+                    disconnected = true;
+                    closeSession = true;
+                }
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        queue.poll();
+                        queue.offer(new Entry(frame, System.nanoTime()));
+                    }
+                    case COALESCE -> {
+                        if (!replaceSameKey(frame)) {
+                            queue.poll();
+                            queue.offer(new Entry(frame, System.nanoTime()));
+                        }
+                    }
+                    case DROP_NEWEST, DISCONNECT -> {
+                        // New frame is discarded
+                    }
+                }
+            }
+        }
+        if (closeSession) {
+            log.warn("Closing slow {} session {} after {} overflows", endpoint, session.getId(), overflows);
+            session.close(SLOW_CONSUMER).subscribe();
+            return;
+        }
+        drain();
+    }
+
+    // Called under this
+    private boolean replaceSameKey(OutboundFrame frame) {
+        if (frame.coalesceKey() == null) {
+            return false;
+        }
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (frame.coalesceKey().equals(entry.frame().coalesceKey())) {
+                it.remove();
+                queue.offer(new Entry(frame, entry.enqueuedAt()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            FluxSink<OutboundFrame> sink = downstream;
+            if (sink != null) {
+                while (sink.requestedFromDownstream() > 0) {
+                    OutboundFrame frame = maxBatch > 1 ? nextBatch() : next();
+                    if (frame == null) {
+                        break;
+                    }
+                    sink.next(frame);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private OutboundFrame next() {
+        Entry entry;
+        synchronized (this) {
+            entry = queue.poll();
+        }
+        return entry != null ? entry.frame() : null;
+    }
+
+    // Drain loop only. Null when the queue is empty or its frames wait for the batch window to close.
+    private OutboundFrame nextBatch() {
+        long now = System.nanoTime();
+        List<OutboundFrame> frames;
+        synchronized (this) {
+            int size = queue.size();
+            if (size == 0) {
+                return null;
+            }
+            boolean idle = now - lastWriteAt >= batchWindowNanos;
+            if (!idle && !flushDue && size < maxBatch) {
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    Schedulers.parallel().schedule(() -> {
+                        flushDue = true;
+                        drain();
+                    }, lastWriteAt + batchWindowNanos - now, TimeUnit.NANOSECONDS);
+                }
+                return null;
+            }
+            int count = Math.min(size, maxBatch);
+            frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                frames.add(queue.poll().frame());
+            }
+        }
+        // A timer still pending after a full batch only flushes early
+        flushScheduled = false;
+        flushDue = false;
+        lastWriteAt = now;
+        batchSizes.record(frames.size());
+        return frames.size() == 1 ? frames.get(0) : OutboundFrame.batch(frames);
+    }
+
+    public String getSessionId() {
+        return session.getId();
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public synchronized int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Age of the oldest frame still waiting to be written, in milliseconds.
+     */
+    public long lagMillis() {
+        Entry oldest;
+        synchronized (this) {
+            oldest = queue.peek();
+        }
+        return oldest == null ? 0 : (System.nanoTime() - oldest.enqueuedAt()) / 1_000_000;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public int getOverflows() {
+        return overflows;
+    }
+
+    private record Entry(OutboundFrame frame, long enqueuedAt) {}
+}
@@ -0,0 +1,31 @@
+package com.example.demo.websocket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * /actuator/wsoutbox: outbound queue state of every live WebSocket session, slowest first.
+ */
+@Component
+@Endpoint(id = "wsoutbox")
+public class SessionOutboxEndpoint {
+
+    @Autowired
+    private SessionOutboxRegistry sessionOutboxRegistry;
+
+    @ReadOperation
+    public List<SessionLag> sessions() {
+        return sessionOutboxRegistry.getOutboxes().stream()
+                .map(outbox -> new SessionLag(outbox.getSessionId(), outbox.getEndpoint(), outbox.depth(),
+                        outbox.lagMillis(), outbox.getDropped(), outbox.getOverflows()))
+                .sorted(Comparator.comparingLong(SessionLag::lagMillis).reversed())
+                .toList();
+    }
+
+    public record SessionLag(String sessionId, String endpoint, int depth, long lagMillis, long dropped, int overflows) {}
+}
@@ -0,0 +1,109 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Creates the {@link SessionOutbox} of each WebSocket session from the websocket.outbox.* settings
+ * and keeps track of the live ones, so their lag can be reported.
+ */
+@Component
+@Slf4j
+public class SessionOutboxRegistry {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${websocket.outbox.capacity:256}")
+    private int capacity;
+
+    @Value("${websocket.outbox.policy:DROP_OLDEST}")
+    private SessionOutbox.OverflowPolicy policy;
+
+    @Value("${websocket.outbox.max-overflows:100}")
+    private int maxOverflows;
+
+    // 1 = every message in its own frame
+    @Value("${websocket.outbox.batch.max-frames:1}")
+    private int batchMaxFrames;
+
+    @Value("${websocket.outbox.batch.window-micros:1000}")
+    private long batchWindowMicros;
+
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+    private final Map<String, Counter> droppedCounters = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> batchSizes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("websocket.outbox.sessions", outboxes, Map::size)
+                .description("Sessions with a live outbound queue")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbox.depth.max", this, registry -> registry.maxOf(SessionOutbox::depth))
+                .description("Deepest outbound queue across sessions")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbox.lag.max", this, registry -> registry.maxOf(SessionOutbox::lagMillis))
+                .description("Age of the oldest unsent frame across sessions")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        log.info("Session outbox: capacity={}, policy={}, maxOverflows={}, batchMaxFrames={}, batchWindowMicros={}",
+                capacity, policy, maxOverflows, batchMaxFrames, batchWindowMicros);
+    }
+
+    public SessionOutbox open(WebSocketSession session, String endpoint) {
+        return open(session, endpoint, false);
+    }
+
+    /**
+     * @param batching whether the session's client accepts several messages packed into one array frame
+     */
+    public SessionOutbox open(WebSocketSession session, String endpoint, boolean batching) {
+        Counter droppedCounter = droppedCounters.computeIfAbsent(endpoint, k -> Counter.builder("websocket.outbox.dropped")
+                .description("Frames dropped by full outbound queues")
+                .tag("endpoint", k)
+                .tag("policy", policy.name())
+                .register(meterRegistry));
+        SessionOutbox outbox;
+        if (batching && batchMaxFrames > 1) {
+            DistributionSummary batchSize = batchSizes.computeIfAbsent(endpoint, k -> DistributionSummary
+                    .builder("websocket.outbox.batch.size")
+                    .description("Messages per outbound frame")
+                    .tag("endpoint", k)
+                    .register(meterRegistry));
+            outbox = new SessionOutbox(session, endpoint, capacity, policy, maxOverflows, droppedCounter,
+                    () -> outboxes.remove(session.getId()), batchMaxFrames, Duration.ofNanos(batchWindowMicros * 1000),
+                    batchSize);
+        } else {
+            outbox = new SessionOutbox(session, endpoint, capacity, policy, maxOverflows, droppedCounter,
+                    () -> outboxes.remove(session.getId()));
+        }
+        outboxes.put(session.getId(), outbox);
+        return outbox;
+    }
+
+    public Collection<SessionOutbox> getOutboxes() {
+        return outboxes.values();
+    }
+
+    private double maxOf(ToLongFunction<SessionOutbox> metric) {
+        long max = 0;
+        for (SessionOutbox outbox : outboxes.values()) {
+            max = Math.max(max, metric.applyAsLong(outbox));
+        }
+        return max;
+    }
+}
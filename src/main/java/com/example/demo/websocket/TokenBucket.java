@@ -0,0 +1,57 @@
+package com.example.demo.websocket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket held in a single {@link AtomicLong}, so event loops taking tokens never lock.
+ * <p>
+ * Instead of a token count and a refill timestamp, it keeps the time at which the bucket will be
+ * full again (GCRA): taking a token pushes that time one refill interval forward, and a token is
+ * available while it is no more than {@code burst} intervals ahead of now.
+ */
+final class TokenBucket {
+
+    private final long intervalNanos;
+    // How far ahead of now the full time may be while a token is still available
+    private final long toleranceNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param refillPerSecond tokens added per second
+     * @param burst           tokens available at once from a full bucket
+     */
+    TokenBucket(double refillPerSecond, int burst) {
+        if (refillPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("refill must be positive and burst at least 1");
+        }
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000d / refillPerSecond));
+        this.toleranceNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Takes a token, now or at most {@code maxWaitNanos} from now.
+     *
+     * @return nanos until the taken token is due (0 = now), or -1 if none is due in time and nothing was taken
+     */
+    long acquire(long now, long maxWaitNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+            long next = start + intervalNanos;
+            long wait = next - now - toleranceNanos;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(wait, 0);
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #acquire} that ended up not being used.
+     */
+    void refund() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+}
@@ -0,0 +1,438 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Broadcast hub for company and room topics.
+ * <p>
+ * Topics are hashed onto a fixed number of shards. Each shard is pinned to one event-loop thread
+ * and is the only writer of its topics and subscriber lists, so nothing in the hub takes a lock:
+ * {@link #publish} just hands the frame to the shard's queue, and the shard delivers it to every
+ * subscriber of the topic in publish order.
+ * <p>
+ * The shard queue is a {@link FairQueue} keyed by topic: a topic with a backlog gets its weighted
+ * share of the shard per round instead of holding back every topic published after it, and the
+ * shard goes back to its event loop after drain-burst frames.
+ * <p>
+ * Every published frame gets the next sequence number of its topic and is kept in a bounded
+ * replay buffer, so a reconnecting client can {@link #resume} from the last sequence it saw.
+ * Sequences are only meaningful within one topic epoch; the epoch changes when an idle topic is
+ * evicted or the server restarts.
+ */
+@Slf4j
+public class TopicHub {
+
+    private final String name;
+    private final int replayCapacity;
+    private final long idleTopicTtlNanos;
+    private final Shard[] shards;
+    private final AtomicLong epochs = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger topicCount = new AtomicInteger();
+    private final Counter publishedCounter;
+    private final Counter undeliveredCounter;
+    private final Counter resumedFromMemoryCounter;
+    private final Counter resumedWithGapCounter;
+    private final Counter shedCounter;
+    private final InterestListener interestListener;
+    private final Fairness fairness;
+
+    public TopicHub(String name, int shardCount, int replayCapacity, Duration idleTopicTtl,
+                    EventLoopGroup eventLoops, MeterRegistry meterRegistry) {
+        this(name, shardCount, replayCapacity, idleTopicTtl, eventLoops, meterRegistry, (topic, subscribed) -> { });
+    }
+
+    public TopicHub(String name, int shardCount, int replayCapacity, Duration idleTopicTtl,
+                    EventLoopGroup eventLoops, MeterRegistry meterRegistry, InterestListener interestListener) {
+        this(name, shardCount, replayCapacity, idleTopicTtl, eventLoops, meterRegistry, interestListener, Fairness.DEFAULT);
+    }
+
+    public TopicHub(String name, int shardCount, int replayCapacity, Duration idleTopicTtl,
+                    EventLoopGroup eventLoops, MeterRegistry meterRegistry, InterestListener interestListener,
+                    Fairness fairness) {
+        this.name = name;
+        this.interestListener = interestListener;
+        this.fairness = fairness;
+        this.replayCapacity = replayCapacity;
+        this.idleTopicTtlNanos = idleTopicTtl.toNanos();
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(eventLoops.next());
+            Shard shard = shards[i];
+            shard.executor.scheduleAtFixedRate(shard::evictIdleTopics,
+                    idleTopicTtl.toMillis(), idleTopicTtl.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        Gauge.builder("websocket.hub.topics", topicCount, AtomicInteger::get)
+                .description("Live topics, with or without subscribers")
+                .tag("hub", name)
+                .register(meterRegistry);
+        Gauge.builder("websocket.hub.pending", this, TopicHub::pendingCount)
+                .description("Frames published and waiting for their shard")
+                .tag("hub", name)
+                .register(meterRegistry);
+        shedCounter = Counter.builder("websocket.hub.shed")
+                .description("Frames not published because their topic was over its pending quota")
+                .tag("hub", name)
+                .register(meterRegistry);
+        publishedCounter = Counter.builder("websocket.hub.published")
+                .description("Frames published to the hub")
+                .tag("hub", name)
+                .register(meterRegistry);
+        undeliveredCounter = Counter.builder("websocket.hub.undelivered")
+                .description("Frames published to a topic without subscribers")
+                .tag("hub", name)
+                .register(meterRegistry);
+        resumedFromMemoryCounter = Counter.builder("websocket.hub.resumed")
+                .description("Resume requests by where the missed frames came from")
+                .tag("hub", name)
+                .tag("source", "memory")
+                .register(meterRegistry);
+        resumedWithGapCounter = Counter.builder("websocket.hub.resumed")
+                .description("Resume requests by where the missed frames came from")
+                .tag("hub", name)
+                .tag("source", "database")
+                .register(meterRegistry);
+        log.info("Topic hub {} started with {} shards, replay buffer {} per topic, {}", name, shardCount, replayCapacity, fairness);
+    }
+
+    /**
+     * How a shard shares its thread between topics.
+     *
+     * @param quantum    frames a weight-1 topic delivers per round
+     * @param topicQuota frames a topic may have waiting before new ones are shed, 0 = no limit
+     * @param drainBurst frames a shard delivers before going back to its event loop
+     * @param weights    weight of a topic (companyCode, roomId), at least 1
+     */
+    public record Fairness(int quantum, int topicQuota, int drainBurst, ToIntFunction<String> weights) {
+
+        public static final Fairness DEFAULT = new Fairness(16, 0, 256, topic -> 1);
+
+        @Override
+        public String toString() {
+            return "quantum=" + quantum + ", topicQuota=" + topicQuota + ", drainBurst=" + drainBurst;
+        }
+    }
+
+    /**
+     * Told when a topic gets its first subscriber and when it loses its last one, on the shard thread.
+     * Lets a {@link ClusterBus} ask other nodes for the topics this node has subscribers for.
+     */
+    @FunctionalInterface
+    public interface InterestListener {
+        void interest(String topic, boolean subscribed);
+    }
+
+    /**
+     * Encodes a message once it has its place in the topic. Called on the shard thread.
+     */
+    @FunctionalInterface
+    public interface FrameEncoder {
+        OutboundFrame encode(long epoch, long seq) throws Exception;
+    }
+
+    /**
+     * Hands the message to the topic's shard and returns immediately. The shard assigns the
+     * sequence number, encodes the frame and delivers it, or sheds it when the topic is over its quota.
+     *
+     * @param timestamp message timestamp, used to find where the replay buffer starts in the database
+     */
+    public void publish(String topic, long timestamp, FrameEncoder encoder) {
+        Shard shard = shardOf(topic);
+        if (!shard.pending.offer(topic, new Publish(topic, timestamp, encoder))) {
+            shedCounter.increment();
+            return;
+        }
+        publishedCounter.increment();
+        shard.scheduleDrain();
+    }
+
+    /**
+     * Frames published to {@code topic} from the moment of subscription until cancellation.
+     * Delivery happens on the topic's shard thread and does not wait for the subscriber,
+     * so the subscriber is expected to buffer (see {@link SessionOutbox#relay}).
+     */
+    public Flux<OutboundFrame> subscribe(String topic) {
+        Shard shard = shardOf(topic);
+        return Flux.push(sink -> {
+            Consumer<OutboundFrame> subscriber = sink::next;
+            shard.executor.execute(() -> {
+                if (!sink.isCancelled()) {
+                    shard.add(topic, subscriber);
+                }
+            });
+            sink.onDispose(() -> shard.executor.execute(() -> shard.remove(topic, subscriber)));
+        }, FluxSink.OverflowStrategy.IGNORE);
+    }
+
+    /**
+     * Subscribes to {@code topic} and replays the buffered frames after {@code afterSeq} in one step
+     * on the shard, so nothing is missed or repeated between the replay and the live frames.
+     * When the buffer no longer reaches back to {@code afterSeq} (or the epoch changed) the whole
+     * buffer is replayed and {@link Resume#isComplete()} is false: the caller has to load the
+     * messages older than {@link Resume#getOldestTimestamp()} from the database first.
+     * <p>
+     * Live frames published while the caller has not read the replay yet are buffered up to twice the
+     * replay capacity (at least {@link Queues#SMALL_BUFFER_SIZE}); past that the frames end with an
+     * error, like a slow consumer, and the client has to resume again ({@link SessionOutbox#relay}
+     * closes the session with {@link SessionOutbox#RESUME_REQUIRED}).
+     */
+    public Mono<Resume> resume(String topic, long epoch, long afterSeq) {
+        Shard shard = shardOf(topic);
+        return Mono.create(sink -> shard.executor.execute(() -> sink.success(shard.resume(topic, epoch, afterSeq))));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int topicCount() {
+        return topicCount.get();
+    }
+
+    private Shard shardOf(String topic) {
+        return shards[Math.floorMod(topic.hashCode(), shards.length)];
+    }
+
+    private int pendingCount() {
+        int pending = 0;
+        for (Shard shard : shards) {
+            pending += shard.pending.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Result of {@link #resume}. {@link #getFrames()} buffers until it is subscribed; call
+     * {@link #cancel()} if it will never be.
+     */
+    public static final class Resume {
+
+        private final boolean complete;
+        private final long oldestTimestamp;
+        private final Flux<OutboundFrame> frames;
+        private final Runnable cancel;
+
+        private Resume(boolean complete, long oldestTimestamp, Flux<OutboundFrame> frames, Runnable cancel) {
+            this.complete = complete;
+            this.oldestTimestamp = oldestTimestamp;
+            this.frames = frames;
+            this.cancel = cancel;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Timestamp of the oldest replayed frame, or Long.MAX_VALUE when nothing was buffered.
+         */
+        public long getOldestTimestamp() {
+            return oldestTimestamp;
+        }
+
+        public Flux<OutboundFrame> getFrames() {
+            return frames;
+        }
+
+        public void cancel() {
+            cancel.run();
+        }
+    }
+
+    private static final class Topic {
+
+        private final long epoch;
+        private final Entry[] ring;
+        private int ringStart;
+        private int ringSize;
+        private long lastSeq;
+        private long lastActivity = System.nanoTime();
+        private final List<Consumer<OutboundFrame>> subscribers = new ArrayList<>();
+
+        private Topic(long epoch, int replayCapacity) {
+            this.epoch = epoch;
+            this.ring = new Entry[replayCapacity];
+        }
+
+        private void append(Entry entry) {
+            if (ring.length == 0) {
+                return;
+            }
+            if (ringSize < ring.length) {
+                ring[(ringStart + ringSize++) % ring.length] = entry;
+            } else {
+                ring[ringStart] = entry;
+                ringStart = (ringStart + 1) % ring.length;
+            }
+        }
+
+        private Entry entry(int i) {
+            return ring[(ringStart + i) % ring.length];
+        }
+    }
+
+    private record Entry(long seq, long timestamp, OutboundFrame frame) {}
+
+    private record Publish(String topic, long timestamp, FrameEncoder encoder) {}
+
+    private final class Shard {
+
+        private final EventExecutor executor;
+
+        // Published frames by topic, drained on executor
+        private final FairQueue<Publish> pending = new FairQueue<>(fairness.quantum(), fairness.topicQuota(), 0,
+                fairness.weights(), idleTopicTtlNanos);
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        // Only touched from executor
+        private final Map<String, Topic> topics = new HashMap<>();
+
+        private Shard(EventExecutor executor) {
+            this.executor = executor;
+        }
+
+        private void scheduleDrain() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this::drainPending);
+            }
+        }
+
+        // One burst per event-loop task, so the loop's sockets and the other shard tasks get their turn
+        private void drainPending() {
+            pending.drain(fairness.drainBurst(), publish -> {
+                try {
+                    deliver(publish.topic(), publish.timestamp(), publish.encoder());
+                } catch (RuntimeException e) {
+                    log.error("Error delivering frame to topic {}: {}", publish.topic(), e.getMessage());
+                }
+            });
+            if (pending.size() > 0) {
+                executor.execute(this::drainPending);
+                return;
+            }
+            draining.set(false);
+            // Published between the drain and the reset
+            if (pending.size() > 0) {
+                scheduleDrain();
+            }
+        }
+
+        private Topic topic(String topic) {
+            return topics.computeIfAbsent(topic, k -> {
+                topicCount.incrementAndGet();
+                log.info("Created topic {} in hub {}", k, name);
+                return new Topic(epochs.incrementAndGet(), replayCapacity);
+            });
+        }
+
+        private void deliver(String topicName, long timestamp, FrameEncoder encoder) {
+            Topic topic = topic(topicName);
+            long seq = topic.lastSeq + 1;
+            OutboundFrame frame;
+            try {
+                frame = encoder.encode(topic.epoch, seq);
+            } catch (Exception e) {
+                log.error("Error encoding frame for topic {}: {}", topicName, e.getMessage());
+                return;
+            }
+            topic.lastSeq = seq;
+            topic.lastActivity = System.nanoTime();
+            topic.append(new Entry(seq, timestamp, frame));
+
+            List<Consumer<OutboundFrame>> subscribers = topic.subscribers;
+            if (subscribers.isEmpty()) {
+                undeliveredCounter.increment();
+                return;
+            }
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).accept(frame);
+            }
+        }
+
+        private void add(String topicName, Consumer<OutboundFrame> subscriber) {
+            addSubscriber(topicName, topic(topicName), subscriber);
+        }
+
+        private void addSubscriber(String topicName, Topic topic, Consumer<OutboundFrame> subscriber) {
+            topic.subscribers.add(subscriber);
+            if (topic.subscribers.size() == 1) {
+                interestListener.interest(topicName, true);
+            }
+        }
+
+        private void remove(String topicName, Consumer<OutboundFrame> subscriber) {
+            Topic topic = topics.get(topicName);
+            if (topic != null && topic.subscribers.remove(subscriber)) {
+                topic.lastActivity = System.nanoTime();
+                if (topic.subscribers.isEmpty()) {
+                    interestListener.interest(topicName, false);
+                }
+            }
+        }
+
+        private Resume resume(String topicName, long epoch, long afterSeq) {
+            Topic topic = topic(topicName);
+            boolean complete = topic.epoch == epoch
+                    && (afterSeq >= topic.lastSeq || (topic.ringSize > 0 && topic.entry(0).seq() <= afterSeq + 1));
+
+            Sinks.Many<OutboundFrame> buffer = Sinks.many().unicast()
+                    .onBackpressureBuffer(Queues.<OutboundFrame>get(Math.max(2 * replayCapacity, Queues.SMALL_BUFFER_SIZE)).get());
+            for (int i = 0; i < topic.ringSize; i++) {
+                Entry entry = topic.entry(i);
+                if (!complete || entry.seq() > afterSeq) {
+                    buffer.tryEmitNext(entry.frame());
+                }
+            }
+            Consumer<OutboundFrame> subscriber = frame -> {
+                // Full: FAIL_ZERO_SUBSCRIBER until getFrames() is subscribed, FAIL_OVERFLOW after.
+                // Removed from the topic once the error reaches doFinally
+                Sinks.EmitResult result = buffer.tryEmitNext(frame);
+                if (result == Sinks.EmitResult.FAIL_OVERFLOW || result == Sinks.EmitResult.FAIL_ZERO_SUBSCRIBER) {
+                    log.warn("Resume buffer of topic {} in hub {} overflowed, ending the resumed stream", topicName, name);
+                    buffer.tryEmitError(new IllegalStateException("Resume buffer overflowed"));
+                }
+            };
+            addSubscriber(topicName, topic, subscriber);
+            (complete ? resumedFromMemoryCounter : resumedWithGapCounter).increment();
+
+            Runnable cancel = () -> executor.execute(() -> remove(topicName, subscriber));
+            long oldestTimestamp = topic.ringSize > 0 ? topic.entry(0).timestamp() : Long.MAX_VALUE;
+            return new Resume(complete, oldestTimestamp, buffer.asFlux().doFinally(signal -> cancel.run()), cancel);
+        }
+
+        private void evictIdleTopics() {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<String, Topic>> it = topics.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Topic> entry = it.next();
+                Topic topic = entry.getValue();
+                if (topic.subscribers.isEmpty() && now - topic.lastActivity > idleTopicTtlNanos) {
+                    it.remove();
+                    topicCount.decrementAndGet();
+                    log.info("Evicted idle topic {} from hub {}", entry.getKey(), name);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads inbound /chat and /room frames in the session's {@link WireFormat}. Outbound frames are
+ * encoded by {@link OutboundFrame}, once per format.
+ */
+@Component
+public class WireCodec {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // Same modules and settings as the JSON mapper, CBOR underneath
+    private ObjectMapper cborMapper;
+
+    @PostConstruct
+    public void init() {
+        cborMapper = objectMapper.copyWith(new CBORFactory());
+    }
+
+    /**
+     * Decodes straight from the frame's buffer, without a String in between.
+     */
+    public <T> T read(WireFormat format, WebSocketMessage message, Class<T> type) throws IOException {
+        ObjectMapper mapper = format == WireFormat.CBOR ? cborMapper : objectMapper;
+        try (InputStream in = message.getPayload().asInputStream()) {
+            return mapper.readValue(in, type);
+        }
+    }
+}
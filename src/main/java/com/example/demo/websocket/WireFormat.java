@@ -0,0 +1,63 @@
+package com.example.demo.websocket;
+
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+
+import java.util.List;
+
+/**
+ * Frame encoding of a /chat or /room session, chosen by the client through the
+ * Sec-WebSocket-Protocol header. Clients that ask for nothing get JSON text frames.
+ */
+public enum WireFormat {
+
+    JSON("json", WebSocketMessage.Type.TEXT, new byte[]{'['}, new byte[]{','}, new byte[]{']'}),
+    /** CBOR binary frames: the same fields as the JSON messages, without repeating names as text. */
+    CBOR("cbor", WebSocketMessage.Type.BINARY, new byte[]{(byte) 0x9F}, new byte[0], new byte[]{(byte) 0xFF});
+
+    /**
+     * Subprotocols the handlers accept; the first one the client lists wins.
+     */
+    public static final List<String> SUB_PROTOCOLS = List.of(CBOR.subProtocol, JSON.subProtocol);
+
+    private final String subProtocol;
+    private final WebSocketMessage.Type messageType;
+    // Framing of several messages packed into one array frame; shared, never written to
+    private final byte[] arrayStart;
+    private final byte[] arraySeparator;
+    private final byte[] arrayEnd;
+
+    WireFormat(String subProtocol, WebSocketMessage.Type messageType, byte[] arrayStart, byte[] arraySeparator,
+               byte[] arrayEnd) {
+        this.subProtocol = subProtocol;
+        this.messageType = messageType;
+        this.arrayStart = arrayStart;
+        this.arraySeparator = arraySeparator;
+        this.arrayEnd = arrayEnd;
+    }
+
+    public static WireFormat of(WebSocketSession session) {
+        return CBOR.subProtocol.equals(session.getHandshakeInfo().getSubProtocol()) ? CBOR : JSON;
+    }
+
+    public String getSubProtocol() {
+        return subProtocol;
+    }
+
+    public WebSocketMessage.Type getMessageType() {
+        return messageType;
+    }
+
+    byte[] arrayStart() {
+        return arrayStart;
+    }
+
+    byte[] arraySeparator() {
+        return arraySeparator;
+    }
+
+    /** CBOR arrays are indefinite-length, closed by a break byte. */
+    byte[] arrayEnd() {
+        return arrayEnd;
+    }
+}
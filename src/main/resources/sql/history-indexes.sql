@@ -0,0 +1,7 @@
+-- Composite indexes for the keyset-paginated history API (/history/**) and reconnect resume.
+-- Every history query is an equality on the topic column plus a range on (timestamp, id),
+-- so pages deep in the history cost the same index seek as the first page.
+
+CREATE INDEX idx_chat_message_company_ts_id ON chat_message (company_code, timestamp, id);
+
+CREATE INDEX idx_room_message_room_ts_id ON room_message (room_id, timestamp, id);
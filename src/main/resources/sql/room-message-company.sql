@@ -0,0 +1,8 @@
+-- Company of the sender of every room message. Sender ids are only unique within a company, so
+-- the room history API needs (company_code, sender) to tell whether the caller is a room member.
+-- Rows written before this column existed have no company and grant no history access.
+-- Apply it before deploying: the application refuses to start while room_message lacks the column.
+
+ALTER TABLE room_message ADD COLUMN company_code VARCHAR(32) NULL AFTER room_id;
+
+CREATE INDEX idx_room_message_member ON room_message (room_id, company_code, sender);
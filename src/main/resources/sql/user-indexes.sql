@@ -0,0 +1,4 @@
+-- Index for the company-scoped, keyset-paginated user listing (/user) and the /user-all stream.
+-- Both filter on company_code and walk id in order; skip it if the primary key is already (company_code, id).
+
+CREATE INDEX idx_tb_user_company_id ON tb_user (company_code, id);
@@ -0,0 +1,77 @@
+package com.example.demo.auth;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.io.Decoders;
+import io.jsonwebtoken.security.Keys;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JwtUtilTest {
+
+    private final AtomicInteger verifications = new AtomicInteger();
+    private final JwtUtil jwtUtil = new JwtUtil(100) {
+        @Override
+        Claims verify(String token) {
+            verifications.incrementAndGet();
+            return super.verify(token);
+        }
+    };
+
+    @Test
+    void verifiedTokenIsServedFromTheCache() {
+        String token = jwtUtil.generateToken("u1", "A");
+
+        assertEquals("u1", jwtUtil.extractClaims(token).getSubject());
+        assertEquals("A", jwtUtil.extractClaims(token).get("companyCode", String.class));
+        assertEquals(1, verifications.get());
+    }
+
+    @Test
+    void cachedTokenExpiresWithItsExpClaim() throws InterruptedException {
+        // exp has a precision of seconds, so this one expires within the next two
+        Date expiration = new Date(System.currentTimeMillis() + 2000);
+        String token = token("u1", expiration);
+        assertEquals("u1", jwtUtil.extractClaims(token).getSubject());
+
+        Thread.sleep(Math.max(0, expiration.getTime() - System.currentTimeMillis()) + 100);
+
+        assertThrows(ExpiredJwtException.class, () -> jwtUtil.extractClaims(token));
+        assertEquals(2, verifications.get());
+    }
+
+    @Test
+    void tamperedTokenIsVerifiedAndRefusedEveryTime() {
+        String token = jwtUtil.generateToken("u1", "A");
+        jwtUtil.extractClaims(token);
+
+        // Same header and signature, payload of another user
+        String[] parts = token.split("\\.");
+        String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8).replace("\"u1\"", "\"admin\"");
+        String tampered = parts[0] + "." + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + "." + parts[2];
+
+        assertThrows(JwtException.class, () -> jwtUtil.extractClaims(tampered));
+        assertThrows(JwtException.class, () -> jwtUtil.extractClaims(tampered));
+        assertEquals(3, verifications.get());
+        assertEquals("u1", jwtUtil.extractClaims(token).getSubject());
+        assertEquals(3, verifications.get());
+    }
+
+    private static String token(String subject, Date expiration) {
+        return Jwts.builder()
+                .subject(subject)
+                .expiration(expiration)
+                .signWith(Keys.hmacShaKeyFor(Decoders.BASE64.decode(JwtUtil.SECRET_KEY)))
+                .compact();
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.demo.auth;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PasswordHasherTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private PasswordHasher hasher;
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        hasher.shutdown();
+    }
+
+    @Test
+    void hashesOnTheWorkerPool() {
+        hasher = hasher(new BlockingEncoder(new CountDownLatch(0)), 1, 1);
+
+        assertTrue(hasher.encode("secret").block(TIMEOUT).startsWith("password-hasher-"));
+        assertTrue(hasher.matches("secret", "{noop}secret").block(TIMEOUT));
+    }
+
+    @Test
+    void fullQueueFailsRightAwayWith503() {
+        // One worker busy and one task waiting: the queue of one is full
+        hasher = hasher(new BlockingEncoder(release), 1, 1);
+        Mono<String> running = hasher.encode("a").cache();
+        Mono<String> waiting = hasher.encode("b").cache();
+        running.subscribe();
+        waiting.subscribe();
+
+        ResponseStatusException e = assertThrows(ResponseStatusException.class, () -> hasher.encode("c").block(TIMEOUT));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatusCode());
+        assertEquals(1, meterRegistry.get("auth.password.rejected").counter().count());
+
+        release.countDown();
+        assertTrue(running.block(TIMEOUT).startsWith("password-hasher-"));
+        assertTrue(waiting.block(TIMEOUT).startsWith("password-hasher-"));
+    }
+
+    private PasswordHasher hasher(PasswordEncoder passwordEncoder, int threads, int queueCapacity) {
+        PasswordHasher hasher = new PasswordHasher();
+        ReflectionTestUtils.setField(hasher, "passwordEncoder", passwordEncoder);
+        ReflectionTestUtils.setField(hasher, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(hasher, "threads", threads);
+        ReflectionTestUtils.setField(hasher, "queueCapacity", queueCapacity);
+        hasher.init();
+        return hasher;
+    }
+
+    // Stands in for BCrypt: "hashes" to the name of the thread it ran on, once the latch opens
+    private record BlockingEncoder(CountDownLatch release) implements PasswordEncoder {
+
+        @Override
+        public String encode(CharSequence rawPassword) {
+            try {
+                release.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Thread.currentThread().getName();
+        }
+
+        @Override
+        public boolean matches(CharSequence rawPassword, String encodedPassword) {
+            return encodedPassword.equals("{noop}" + rawPassword);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.demo.user;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class UserPrincipalCacheTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    // tb_user, keyed by companyCode + ":" + id
+    private final Map<String, UserModel> users = new ConcurrentHashMap<>();
+    private final AtomicInteger queries = new AtomicInteger();
+    private UserPrincipalCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = new UserPrincipalCache();
+        ReflectionTestUtils.setField(cache, "userRepository", repository());
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(cache, "maxSize", 100L);
+        cache.init();
+    }
+
+    @Test
+    void repeatedLookupsQueryTheTableOnce() {
+        save("A", "u1", "Alice");
+
+        assertEquals("Alice", cache.get("A", "u1").block(TIMEOUT).getUserName());
+        assertEquals("Alice", cache.get("A", "u1").block(TIMEOUT).getUserName());
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    void invalidatedUserIsReadAgain() {
+        save("A", "u1", "Alice");
+        cache.get("A", "u1").block(TIMEOUT);
+
+        save("A", "u1", "Alice Nguyen");
+        cache.invalidate("A", "u1");
+
+        assertEquals("Alice Nguyen", cache.get("A", "u1").block(TIMEOUT).getUserName());
+        assertEquals(2, queries.get());
+    }
+
+    @Test
+    void invalidationOnlyAffectsThatCompanysUser() {
+        save("A", "u1", "Alice");
+        save("B", "u1", "Bob");
+        cache.get("A", "u1").block(TIMEOUT);
+        cache.get("B", "u1").block(TIMEOUT);
+
+        cache.invalidate("A", "u1");
+        cache.get("A", "u1").block(TIMEOUT);
+        cache.get("B", "u1").block(TIMEOUT);
+
+        assertEquals(3, queries.get());
+    }
+
+    @Test
+    void missingUserIsNotCached() {
+        assertNull(cache.get("A", "u1").block(TIMEOUT));
+
+        save("A", "u1", "Alice");
+
+        assertEquals("Alice", cache.get("A", "u1").block(TIMEOUT).getUserName());
+        assertEquals(2, queries.get());
+    }
+
+    private void save(String companyCode, String id, String userName) {
+        UserModel user = new UserModel();
+        user.setCompanyCode(companyCode);
+        user.setId(id);
+        user.setUserName(userName);
+        users.put(companyCode + ":" + id, user);
+    }
+
+    // Only the lookup the cache makes; anything else is a test bug
+    private UserRepository repository() {
+        return (UserRepository) Proxy.newProxyInstance(UserRepository.class.getClassLoader(),
+                new Class<?>[]{UserRepository.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("findByIdAndCompanyCode")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return Mono.fromSupplier(() -> {
+                        queries.incrementAndGet();
+                        return users.get(args[1] + ":" + args[0]);
+                    });
+                });
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.r2dbc.spi.ConnectionFactories;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatMessageWriteBehindTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private DatabaseClient databaseClient;
+    private MeterRegistry meterRegistry;
+    private ChatMessageWriteBehind writeBehind;
+
+    @BeforeEach
+    void setUp() {
+        databaseClient = DatabaseClient.create(ConnectionFactories.get(
+                "r2dbc:h2:mem:///write-behind-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        databaseClient.sql("CREATE TABLE chat_message (id INT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(64) NOT NULL, "
+                + "content VARCHAR(255), company_code VARCHAR(32), timestamp BIGINT)").then().block();
+
+        meterRegistry = new SimpleMeterRegistry();
+        writeBehind = new ChatMessageWriteBehind();
+        ReflectionTestUtils.setField(writeBehind, "databaseClient", databaseClient);
+        ReflectionTestUtils.setField(writeBehind, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(writeBehind, "queueCapacity", 100);
+        ReflectionTestUtils.setField(writeBehind, "batchSize", 3);
+        // Only a full batch is written, so every test controls what goes into one INSERT
+        ReflectionTestUtils.setField(writeBehind, "flushIntervalMs", Duration.ofHours(1).toMillis());
+        ReflectionTestUtils.setField(writeBehind, "companyQuota", 0);
+        ReflectionTestUtils.setField(writeBehind, "quantum", 16);
+        ReflectionTestUtils.setField(writeBehind, "companyWeights", "");
+        writeBehind.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeBehind.shutdown();
+    }
+
+    @Test
+    void savedMessagesCarryTheirGeneratedIds() {
+        List<ChatMessage> saved = Flux.merge(IntStream.rangeClosed(1, 3)
+                        .mapToObj(i -> writeBehind.enqueue(message("u" + i, "m" + i)))
+                        .toList())
+                .collectList()
+                .block(TIMEOUT);
+
+        assertEquals(3, saved.size());
+        for (ChatMessage message : saved) {
+            String content = databaseClient.sql("SELECT content FROM chat_message WHERE id = :id")
+                    .bind("id", Long.parseLong(message.getId()))
+                    .map(row -> row.get("content", String.class))
+                    .one()
+                    .block(TIMEOUT);
+            assertEquals(message.getContent(), content);
+        }
+    }
+
+    @Test
+    void rowTheDatabaseRefusesFailsAloneAndTheRestOfItsBatchIsSaved() {
+        Mono<ChatMessage> first = writeBehind.enqueue(message("u1", "m1"));
+        Mono<ChatMessage> refused = writeBehind.enqueue(message(null, "no sender"));
+        Mono<ChatMessage> third = writeBehind.enqueue(message("u3", "m3"));
+        Flux.merge(first.onErrorComplete(), refused.onErrorComplete(), third.onErrorComplete()).blockLast(TIMEOUT);
+
+        assertEquals(List.of("m1", "m3"), contents());
+    }
+
+    @Test
+    void contentLongerThanTheColumnIsRefusedWithoutBeingQueued() {
+        Mono<ChatMessage> tooLong = writeBehind.enqueue(message("u1", "x".repeat(ChatMessageWriteBehind.MAX_CONTENT_LENGTH + 1)));
+
+        assertThrows(IllegalArgumentException.class, () -> tooLong.block(TIMEOUT));
+        assertEquals(0, meterRegistry.get("chat.persist.queue.depth").gauge().value());
+    }
+
+    @Test
+    void mysqlFirstIdIsSpreadOverTheRowsOfTheInsert() {
+        assertEquals(List.of(41L, 42L, 43L), ChatMessageWriteBehind.generatedIds(List.of(41L), 3));
+        assertEquals(List.of(7L, 9L), ChatMessageWriteBehind.generatedIds(List.of(7L, 9L), 2));
+        assertTrue(assertThrows(IllegalStateException.class,
+                () -> ChatMessageWriteBehind.generatedIds(List.of(1L, 2L), 3)).getMessage().contains("got 2"));
+    }
+
+    private static ChatMessage message(String sender, String content) {
+        ChatMessage message = new ChatMessage();
+        message.setSender(sender);
+        message.setContent(content);
+        message.setCompanyCode("A");
+        message.setTimestamp(System.currentTimeMillis());
+        return message;
+    }
+
+    private List<String> contents() {
+        return databaseClient.sql("SELECT content FROM chat_message ORDER BY id")
+                .map(row -> row.get("content", String.class))
+                .all()
+                .collectList()
+                .block(TIMEOUT);
+    }
+}
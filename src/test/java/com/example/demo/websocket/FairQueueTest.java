@@ -0,0 +1,167 @@
+package com.example.demo.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FairQueueTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    void keysGetTurnsInProportionToTheirWeight() {
+        FairQueue<String> queue = new FairQueue<>(1, 0, 0, FairQueue.weights("A=2"), NEVER);
+        for (int i = 0; i < 30; i++) {
+            queue.offer("A", "A");
+            queue.offer("B", "B");
+        }
+
+        Map<String, Integer> taken = new HashMap<>();
+        queue.drain(30, key -> taken.merge(key, 1, Integer::sum));
+
+        assertEquals(20, taken.get("A"));
+        assertEquals(10, taken.get("B"));
+    }
+
+    @Test
+    void backlogOfOneKeyDoesNotDelayAnother() {
+        FairQueue<String> queue = new FairQueue<>(4, 0, 0, key -> 1, NEVER);
+        for (int i = 0; i < 1000; i++) {
+            queue.offer("flood", "flood");
+        }
+        queue.offer("quiet", "quiet");
+
+        List<String> taken = drainAll(queue, 8);
+
+        assertEquals("quiet", taken.get(4));
+    }
+
+    @Test
+    void itemsOfOneKeyComeOutInOfferOrder() {
+        FairQueue<String> queue = new FairQueue<>(2, 0, 0, key -> 1, NEVER);
+        for (int i = 0; i < 10; i++) {
+            queue.offer("A", "A" + i);
+            queue.offer("B", "B" + i);
+        }
+
+        List<String> taken = drainAll(queue, 3);
+
+        assertEquals(20, taken.size());
+        assertEquals(List.of("A0", "A1", "A2", "A3", "A4", "A5", "A6", "A7", "A8", "A9"),
+                taken.stream().filter(item -> item.startsWith("A")).toList());
+        assertEquals(List.of("B0", "B1", "B2", "B3", "B4", "B5", "B6", "B7", "B8", "B9"),
+                taken.stream().filter(item -> item.startsWith("B")).toList());
+    }
+
+    @Test
+    void keyOverItsQuotaIsRefusedOnItsOwn() {
+        FairQueue<String> queue = new FairQueue<>(1, 3, 0, key -> 1, NEVER);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(queue.offer("A", "A"));
+        }
+        assertFalse(queue.offer("A", "A"));
+        assertTrue(queue.offer("B", "B"));
+
+        queue.drain(1, item -> { });
+        assertTrue(queue.offer("A", "A"));
+    }
+
+    @Test
+    void fullQueueRefusesEveryKey() {
+        FairQueue<String> queue = new FairQueue<>(1, 0, 4, key -> 1, NEVER);
+        assertTrue(queue.offer("A", "A"));
+        assertTrue(queue.offer("A", "A"));
+        assertTrue(queue.offer("B", "B"));
+        assertTrue(queue.offer("C", "C"));
+        assertFalse(queue.offer("D", "D"));
+        assertEquals(4, queue.size());
+
+        queue.drain(1, item -> { });
+        assertTrue(queue.offer("D", "D"));
+    }
+
+    @Test
+    void drainCutShortByMaxKeepsTheLanesTurn() {
+        FairQueue<String> queue = new FairQueue<>(4, 0, 0, key -> 1, NEVER);
+        for (int i = 0; i < 8; i++) {
+            queue.offer("A", "A");
+            queue.offer("B", "B");
+        }
+
+        assertEquals(List.of("A", "A"), drain(queue, 2));
+        assertEquals(List.of("A", "A"), drain(queue, 2));
+        assertEquals(List.of("B", "B", "B", "B"), drain(queue, 4));
+        assertEquals(List.of("A", "A", "A", "A"), drain(queue, 4));
+    }
+
+    @Test
+    void idleLanesAreDropped() {
+        FairQueue<String> queue = new FairQueue<>(1, 0, 0, key -> 1, 0);
+        queue.offer("A", "A");
+        queue.offer("B", "B");
+        assertEquals(2, queue.keys());
+
+        drainAll(queue, 10);
+
+        assertEquals(0, queue.keys());
+        assertTrue(queue.offer("A", "A"));
+        assertEquals(List.of("A"), drainAll(queue, 10));
+    }
+
+    @Test
+    void offerRacingTheIdleLaneSweepLosesNothing() throws InterruptedException {
+        // Every drain sweeps, so the producer's lane is dropped whenever the drainer empties it
+        FairQueue<Integer> queue = new FairQueue<>(1, 0, 0, key -> 1, 0);
+        int items = 200_000;
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                if (queue.offer("A", i)) {
+                    accepted.incrementAndGet();
+                }
+            }
+            done.set(true);
+        });
+        producer.start();
+
+        List<Integer> taken = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while ((!done.get() || queue.size() > 0) && System.nanoTime() < deadline) {
+            queue.drain(16, taken::add);
+        }
+        producer.join();
+        drainAll(queue, 16).forEach(taken::add);
+
+        assertEquals(items, accepted.get());
+        assertEquals(items, taken.size());
+        for (int i = 0; i < items; i++) {
+            assertEquals(i, taken.get(i));
+        }
+        assertEquals(0, queue.size());
+    }
+
+    private static <T> List<T> drain(FairQueue<T> queue, int max) {
+        List<T> taken = new ArrayList<>();
+        queue.drain(max, taken::add);
+        return taken;
+    }
+
+    private static <T> List<T> drainAll(FairQueue<T> queue, int max) {
+        List<T> taken = new ArrayList<>();
+        while (queue.drain(max, taken::add) > 0) {
+            // until empty
+        }
+        return taken;
+    }
+}
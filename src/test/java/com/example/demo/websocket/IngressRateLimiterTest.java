@@ -0,0 +1,104 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngressRateLimiterTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final SessionIdentity IDENTITY = new SessionIdentity("u1", "A");
+
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(UnpooledByteBufAllocator.DEFAULT);
+
+    @Test
+    void framesArrivingDuringADelayAreHandledIntactAndReleased() {
+        // One token at once, then one every 100 ms: the second and third frames both arrive within the first delay
+        IngressRateLimiter limiter = limiter(IngressRateLimiter.Policy.DELAY, 10, 1);
+        List<NettyDataBuffer> payloads = payloads(3);
+
+        long start = System.nanoTime();
+        List<String> received = limiter.limit("chat", null, IDENTITY, inbound(payloads))
+                .map(WebSocketMessage::getPayloadAsText)
+                .collectList()
+                .block(TIMEOUT);
+
+        assertEquals(List.of("m0", "m1", "m2"), received);
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(200).toNanos());
+        // The last frame is released on the delay thread, right after completion reached block()
+        await(() -> payloads.stream().allMatch(payload -> payload.getNativeBuffer().refCnt() == 0));
+    }
+
+    @Test
+    void dropPolicyDiscardsFramesOverTheLimit() {
+        IngressRateLimiter limiter = limiter(IngressRateLimiter.Policy.DROP, 1, 2);
+
+        List<String> received = limiter.limit("chat", null, IDENTITY, inbound(payloads(5)))
+                .map(WebSocketMessage::getPayloadAsText)
+                .collectList()
+                .block(TIMEOUT);
+
+        assertEquals(List.of("m0", "m1"), received);
+    }
+
+    private IngressRateLimiter limiter(IngressRateLimiter.Policy policy, double refillPerSecond, int burst) {
+        IngressRateLimiter limiter = new IngressRateLimiter();
+        ReflectionTestUtils.setField(limiter, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "policy", policy);
+        ReflectionTestUtils.setField(limiter, "sessionRefillPerSecond", refillPerSecond);
+        ReflectionTestUtils.setField(limiter, "sessionBurst", burst);
+        ReflectionTestUtils.setField(limiter, "senderRefillPerSecond", 1000.0);
+        ReflectionTestUtils.setField(limiter, "senderBurst", 1000);
+        ReflectionTestUtils.setField(limiter, "maxDelayMs", 1000L);
+        limiter.init();
+        return limiter;
+    }
+
+    private List<NettyDataBuffer> payloads(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> (NettyDataBuffer) bufferFactory.wrap(("m" + i).getBytes(StandardCharsets.UTF_8)))
+                .toList();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + TIMEOUT);
+            }
+            sleep(20);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Like reactor-netty's inbound: reads a frame only on demand, and releases it once it has been delivered
+    private static Flux<WebSocketMessage> inbound(List<NettyDataBuffer> payloads) {
+        return Flux.fromIterable(payloads)
+                .concatMap(payload -> Mono.just(new WebSocketMessage(WebSocketMessage.Type.TEXT, payload))
+                        .doFinally(signal -> DataBufferUtils.release(payload)), 0);
+    }
+}
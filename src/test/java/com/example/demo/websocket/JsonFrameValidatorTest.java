@@ -0,0 +1,129 @@
+package com.example.demo.websocket;
+
+import com.example.demo.websocket.JsonFrameValidator.Result;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonFrameValidatorTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final JsonFrameValidator validator = new JsonFrameValidator();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(validator, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(validator, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(validator, "maxFrameBytes", 64);
+        ReflectionTestUtils.setField(validator, "maxDepth", 4);
+        validator.init();
+    }
+
+    @Test
+    void acceptsOneWellFormedValue() {
+        assertEquals(Result.VALID, validate("{\"content\":\"hi\",\"clientMsgId\":\"1\"}"));
+        assertEquals(Result.VALID, validate("  [1, 2.5, true, null, \"x\"]\n"));
+        assertEquals(Result.VALID, validate("\"just a string\""));
+        assertEquals(Result.VALID, validate("{\"content\":\"xin chào\"}"));
+    }
+
+    @Test
+    void rejectsMalformedInput() {
+        assertEquals(Result.MALFORMED, validate("not json"));
+        assertEquals(Result.MALFORMED, validate("{\"content\":}"));
+        assertEquals(Result.MALFORMED, validate("{\"content\":\"hi\",}"));
+        assertEquals(Result.MALFORMED, validate("{content:\"hi\"}"));
+        assertEquals(Result.MALFORMED, validate("[1 2]"));
+        assertEquals(Result.MALFORMED, validate("{\"a\":1]"));
+    }
+
+    @Test
+    void rejectsEmptyInput() {
+        assertEquals(Result.MALFORMED, validate(""));
+        assertEquals(Result.MALFORMED, validate("   \n"));
+    }
+
+    @Test
+    void rejectsTruncatedInput() {
+        assertEquals(Result.MALFORMED, validate("{\"content\":\"hi\""));
+        assertEquals(Result.MALFORMED, validate("{\"content\":\"hel"));
+        assertEquals(Result.MALFORMED, validate("[[1,2],[3"));
+        assertEquals(Result.MALFORMED, validate("{\"content\""));
+    }
+
+    @Test
+    void rejectsASecondValueAfterTheFirst() {
+        assertEquals(Result.MALFORMED, validate("{} {}"));
+        assertEquals(Result.MALFORMED, validate("{\"content\":\"hi\"}x"));
+        assertEquals(Result.MALFORMED, validate("1 2"));
+    }
+
+    @Test
+    void rejectsFramesOverTheSizeLimit() {
+        String fits = "{\"content\":\"" + "x".repeat(64 - 14) + "\"}";
+        assertEquals(64, fits.length());
+        assertEquals(Result.VALID, validate(fits));
+        assertEquals(Result.TOO_LARGE, validate(fits + " "));
+
+        assertFalse(validator.exceedsMaxSize(64));
+        assertTrue(validator.exceedsMaxSize(65));
+    }
+
+    @Test
+    void oversizedFrameIsRejectedWithoutBeingParsed() {
+        // Malformed as well, but the size is checked first
+        assertEquals(Result.TOO_LARGE, validate("{".repeat(65)));
+    }
+
+    @Test
+    void rejectsNestingOverTheDepthLimit() {
+        assertEquals(Result.VALID, validate("[[[[1]]]]"));
+        assertEquals(Result.VALID, validate("{\"a\":{\"b\":[{\"c\":1}]}}"));
+        assertEquals(Result.TOO_DEEP, validate("[[[[[1]]]]]"));
+        assertEquals(Result.TOO_DEEP, validate("{\"a\":{\"b\":[{\"c\":[]}]}}"));
+    }
+
+    @Test
+    void deeplyNestedInputStopsAtTheLimit() {
+        ReflectionTestUtils.setField(validator, "maxFrameBytes", 1 << 20);
+        // Unbalanced on purpose: the validator must give up at the depth limit, not at the end
+        assertEquals(Result.TOO_DEEP, validate("[".repeat(500_000)));
+        assertEquals(Result.TOO_DEEP, validate("{\"a\":".repeat(100_000)));
+    }
+
+    @Test
+    void siblingsDoNotAddUpToDepth() {
+        assertEquals(Result.VALID, validate("[[],[],[],[],[],[],[]]"));
+    }
+
+    @Test
+    void countsEveryResult() {
+        validate("{}");
+        validate("{");
+        validate("[[[[[]]]]]");
+        validate("x".repeat(65));
+        validator.exceedsMaxSize(1000);
+
+        assertEquals(1, count("valid"));
+        assertEquals(1, count("malformed"));
+        assertEquals(1, count("too_deep"));
+        assertEquals(2, count("too_large"));
+    }
+
+    private Result validate(String json) {
+        return validator.validate(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private double count(String result) {
+        return meterRegistry.get("websocket.json.validated").tag("result", result).counter().count();
+    }
+}
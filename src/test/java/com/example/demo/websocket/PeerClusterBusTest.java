@@ -0,0 +1,204 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.netty.Connection;
+import reactor.netty.tcp.TcpClient;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PeerClusterBusTest {
+
+    private static final String SECRET = "test-secret";
+    private static final String HOST = "127.0.0.1";
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final List<PeerClusterBus> buses = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        buses.forEach(PeerClusterBus::shutdown);
+    }
+
+    @Test
+    void deliversToAPeerThatDeclaredInterest() throws IOException {
+        String a = HOST + ":" + freePort();
+        String b = HOST + ":" + freePort();
+        PeerClusterBus busA = start(a, SECRET, List.of(b), new SimpleMeterRegistry());
+        PeerClusterBus busB = start(b, SECRET, List.of(a), new SimpleMeterRegistry());
+        List<String> received = new CopyOnWriteArrayList<>();
+        busB.listen("room", (topic, payload) -> received.add(topic + ":" + new String(payload, StandardCharsets.UTF_8)));
+        busB.interest("room", "R1", true);
+
+        // Sent only once A has B's interest, so keep publishing until one arrives
+        await(() -> {
+            busA.broadcast("room", "R1", "hi".getBytes(StandardCharsets.UTF_8));
+            return !received.isEmpty();
+        });
+        assertEquals("R1:hi", received.get(0));
+
+        busA.broadcast("room", "R2", "not subscribed".getBytes(StandardCharsets.UTF_8));
+        busA.broadcast("room", "R1", "last".getBytes(StandardCharsets.UTF_8));
+        await(() -> received.get(received.size() - 1).equals("R1:last"));
+        assertTrue(received.stream().allMatch(message -> message.startsWith("R1:")));
+    }
+
+    @Test
+    void dropsAMessageIdAlreadyReceivedFromTheSameOrigin() throws IOException {
+        String a = HOST + ":" + freePort();
+        String b = HOST + ":" + freePort();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PeerClusterBus busB = start(b, SECRET, List.of(a), meterRegistry);
+        List<String> received = new CopyOnWriteArrayList<>();
+        busB.listen("room", (topic, payload) -> received.add(new String(payload, StandardCharsets.UTF_8)));
+
+        Connection connection = connect(b);
+        send(connection, hello(a, SECRET), message(1, "first"), message(1, "again"), message(2, "second"));
+
+        await(() -> received.size() == 2);
+        assertEquals(List.of("first", "second"), received);
+        assertEquals(1, meterRegistry.get("cluster.bus.duplicates").counter().count());
+        connection.dispose();
+    }
+
+    @Test
+    void closesAConnectionWhoseHelloIsSignedWithAnotherSecret() throws IOException {
+        assertRejected(a -> hello(a, "wrong-secret"));
+    }
+
+    @Test
+    void closesAConnectionFromANodeNotInPeers() throws IOException {
+        assertRejected(a -> hello(HOST + ":1", SECRET));
+    }
+
+    @Test
+    void closesAConnectionThatSendsMessagesBeforeHello() throws IOException {
+        assertRejected(a -> message(1, "injected"));
+    }
+
+    @Test
+    void peerModeRequiresASecret() {
+        assertThrows(IllegalArgumentException.class, () -> new PeerClusterBus("localhost:7400", HOST, 7400, " ",
+                List.of(), 16, Duration.ofMillis(1), 100, Duration.ofMillis(50), new SimpleMeterRegistry()));
+    }
+
+    private void assertRejected(Function<String, ByteBuf> firstRecord) throws IOException {
+        String a = HOST + ":" + freePort();
+        String b = HOST + ":" + freePort();
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        PeerClusterBus busB = start(b, SECRET, List.of(a), meterRegistry);
+        List<String> received = new CopyOnWriteArrayList<>();
+        busB.listen("room", (topic, payload) -> received.add(new String(payload, StandardCharsets.UTF_8)));
+
+        Connection connection = connect(b);
+        send(connection, firstRecord.apply(a), message(1, "injected"));
+
+        await(connection::isDisposed);
+        assertTrue(received.isEmpty());
+        assertEquals(0, meterRegistry.get("cluster.bus.messages").tag("direction", "in").counter().count());
+    }
+
+    private PeerClusterBus start(String nodeId, String secret, List<String> peers, MeterRegistry meterRegistry) {
+        int port = Integer.parseInt(nodeId.substring(nodeId.lastIndexOf(':') + 1));
+        PeerClusterBus bus = new PeerClusterBus(nodeId, HOST, port, secret, peers, 16, Duration.ofMillis(1), 100,
+                Duration.ofMillis(50), meterRegistry);
+        bus.start();
+        buses.add(bus);
+        return bus;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName(HOST))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // A hand-written client, to send what a well-behaved node never would
+    private static Connection connect(String address) {
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        return TcpClient.create()
+                .host(HOST)
+                .port(port)
+                .connectNow(TIMEOUT);
+    }
+
+    // One frame per record, in the bus's format: length, record count, then the record
+    private static void send(Connection connection, ByteBuf... records) {
+        for (ByteBuf record : records) {
+            ByteBuf frame = Unpooled.buffer().writeInt(4 + record.readableBytes()).writeInt(1).writeBytes(record);
+            connection.outbound().sendObject(Mono.just(frame)).then().onErrorComplete().block(TIMEOUT);
+        }
+    }
+
+    private static ByteBuf hello(String nodeId, String secret) {
+        long now = System.currentTimeMillis();
+        byte[] mac = sign(secret, nodeId, now);
+        ByteBuf record = Unpooled.buffer().writeByte(0);
+        writeString(record, nodeId);
+        return record.writeLong(now).writeShort(mac.length).writeBytes(mac);
+    }
+
+    private static ByteBuf message(long id, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuf record = Unpooled.buffer().writeByte(1).writeLong(id);
+        writeString(record, "room");
+        writeString(record, "R1");
+        return record.writeInt(bytes.length).writeBytes(bytes);
+    }
+
+    private static byte[] sign(String secret, String nodeId, long timestamp) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            mac.update(nodeId.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(Long.toString(timestamp).getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(ByteBuf buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.writeShort(bytes.length).writeBytes(bytes);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + TIMEOUT);
+            }
+            sleep(20);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
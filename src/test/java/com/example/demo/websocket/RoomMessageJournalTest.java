@@ -0,0 +1,323 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.r2dbc.spi.ConnectionFactories;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomMessageJournalTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final long PAUSED = Duration.ofHours(1).toMillis();
+    private static final long DRAINING = 10;
+
+    @TempDir
+    Path directory;
+
+    private DatabaseClient databaseClient;
+    private MeterRegistry meterRegistry;
+    private RoomMessageJournal journal;
+    private int drainMaxRetries = 2;
+
+    @BeforeEach
+    void setUp() {
+        databaseClient = DatabaseClient.create(ConnectionFactories.get(
+                "r2dbc:h2:mem:///journal-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        databaseClient.sql("CREATE TABLE room_message (id INT AUTO_INCREMENT PRIMARY KEY, sender VARCHAR(64), "
+                + "content VARCHAR(255), room_id VARCHAR(64) NOT NULL, company_code VARCHAR(32), timestamp BIGINT)").then().block();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (journal != null) {
+            journal.shutdown();
+        }
+    }
+
+    @Test
+    void appendedMessagesReachTheTableInOrder() throws IOException {
+        open(4096, DRAINING, Long.MAX_VALUE);
+        append(1, 3);
+
+        await(() -> contents().size() == 3);
+        assertEquals(List.of("m1", "m2", "m3"), contents());
+    }
+
+    @Test
+    void undrainedMessagesAreReplayedAfterARestart() throws IOException {
+        open(4096, PAUSED, Long.MAX_VALUE);
+        append(1, 5);
+        reopen(4096, DRAINING);
+
+        await(() -> contents().size() == 5);
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), contents());
+    }
+
+    @Test
+    void checkpointKeepsDrainedMessagesFromBeingReplayed() throws IOException {
+        open(4096, DRAINING, Long.MAX_VALUE);
+        append(1, 3);
+        // Rows are visible before the checkpoint moves; a restart in between replays them (at-least-once)
+        await(() -> meterRegistry.get("room.journal.backlog.bytes").gauge().value() == 0);
+
+        reopen(4096, DRAINING);
+        append(4, 5);
+
+        await(() -> contents().size() == 5);
+        sleep(100);
+        assertEquals(List.of("m1", "m2", "m3", "m4", "m5"), contents());
+    }
+
+    @Test
+    void recordWithABadChecksumEndsTheReplayedData() throws IOException {
+        open(4096, PAUSED, Long.MAX_VALUE);
+        append(1, 3);
+        journal.shutdown();
+        journal = null;
+
+        Path segment = segments().get(0);
+        int third = recordOffsets(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // Flips a payload byte, as a torn write would leave it
+            channel.write(ByteBuffer.wrap(new byte[]{'#'}), third + 8 + 2);
+        }
+
+        open(4096, DRAINING, Long.MAX_VALUE);
+        append(4, 4);
+        await(() -> contents().size() == 3);
+        sleep(100);
+        assertEquals(List.of("m1", "m2", "m4"), contents());
+    }
+
+    @Test
+    void truncatedRecordEndsTheReplayedData() throws IOException {
+        open(4096, PAUSED, Long.MAX_VALUE);
+        append(1, 3);
+        journal.shutdown();
+        journal = null;
+
+        Path segment = segments().get(0);
+        int third = recordOffsets(segment).get(2);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(third + 12);
+        }
+
+        open(4096, DRAINING, Long.MAX_VALUE);
+        await(() -> contents().size() == 2);
+        sleep(100);
+        assertEquals(List.of("m1", "m2"), contents());
+    }
+
+    @Test
+    void rollsOverAndDeletesDrainedSegments() throws IOException {
+        open(512, PAUSED, Long.MAX_VALUE);
+        append(1, 20);
+        assertTrue(segments().size() > 2, "segments " + segments().size());
+
+        reopen(512, DRAINING);
+
+        await(() -> contents().size() == 20);
+        assertEquals(IntStream.rangeClosed(1, 20).mapToObj(i -> "m" + i).toList(), contents());
+        // Only the segment opened by the restart is left
+        await(() -> segments().size() == 1);
+    }
+
+    @Test
+    void fullJournalRefusesNewMessagesAndKeepsTheOthers() throws IOException {
+        open(512, PAUSED, 1024);
+        int accepted = 0;
+        boolean refused = false;
+        while (!refused) {
+            try {
+                journal.append(message(accepted + 1)).block(TIMEOUT);
+                accepted++;
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+        }
+        assertEquals(2, segments().size());
+        assertEquals(1, meterRegistry.get("room.journal.rejected").counter().count());
+
+        int expected = accepted;
+        reopen(512, DRAINING);
+        await(() -> contents().size() == expected);
+    }
+
+    @Test
+    void messageTheDatabaseKeepsRefusingIsDeadLettered() throws IOException {
+        open(4096, DRAINING, Long.MAX_VALUE);
+        journal.append(message(1)).block(TIMEOUT);
+        RoomMessage poison = message(2);
+        // Too long for the column: H2 reports it as an uncategorized error, retried with backoff
+        poison.setSender("x".repeat(65));
+        journal.append(poison).block(TIMEOUT);
+        journal.append(message(3)).block(TIMEOUT);
+
+        await(() -> contents().size() == 2);
+        assertEquals(List.of("m1", "m3"), contents());
+        assertEquals(1, meterRegistry.get("room.journal.dead-lettered").counter().count());
+
+        Path deadLetter = directory.resolve("dead-letter.log");
+        List<Integer> offsets = recordOffsets(deadLetter);
+        assertEquals(1, offsets.size());
+        String record = new String(Files.readAllBytes(deadLetter), StandardCharsets.UTF_8);
+        assertTrue(record.contains("x".repeat(65)));
+    }
+
+    @Test
+    void dataIntegrityViolationIsDeadLetteredWithoutRetrying() throws IOException {
+        open(4096, PAUSED, Long.MAX_VALUE);
+        append(1, 2);
+        RoomMessage poison = message(3);
+        poison.setRoomId(null);
+        journal.append(poison).block(TIMEOUT);
+        append(4, 5);
+        // Backoff alone would not reach the dead-letter file within the timeout
+        drainMaxRetries = 1_000;
+        reopen(4096, DRAINING);
+
+        await(() -> contents().size() == 4);
+        assertEquals(List.of("m1", "m2", "m4", "m5"), contents());
+        assertEquals(1, meterRegistry.get("room.journal.dead-lettered").counter().count());
+    }
+
+    @Test
+    void contentLongerThanTheColumnIsRefusedAtAppend() throws IOException {
+        open(4096, DRAINING, Long.MAX_VALUE);
+        RoomMessage tooLong = message(1);
+        tooLong.setContent("x".repeat(RoomMessageJournal.MAX_CONTENT_LENGTH + 1));
+
+        assertThrows(IllegalArgumentException.class, () -> journal.append(tooLong).block(TIMEOUT));
+        append(2, 2);
+        await(() -> contents().size() == 1);
+        assertEquals(1, meterRegistry.get("room.journal.appended").counter().count());
+    }
+
+    @Test
+    void refusesToStartWithoutTheCompanyColumn() {
+        databaseClient.sql("ALTER TABLE room_message DROP COLUMN company_code").then().block();
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> open(4096, DRAINING, Long.MAX_VALUE));
+        assertTrue(e.getMessage().contains("company_code"));
+        journal = null;
+    }
+
+    @Test
+    void startsBeforeTheTableIsCreated() throws IOException {
+        databaseClient.sql("DROP TABLE room_message").then().block();
+
+        open(4096, PAUSED, Long.MAX_VALUE);
+        append(1, 1);
+    }
+
+    private void open(int segmentSize, long drainIntervalMs, long maxBytes) throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        journal = new RoomMessageJournal();
+        ReflectionTestUtils.setField(journal, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(journal, "databaseClient", databaseClient);
+        ReflectionTestUtils.setField(journal, "meterRegistry", meterRegistry);
+        ReflectionTestUtils.setField(journal, "journalDir", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", segmentSize);
+        ReflectionTestUtils.setField(journal, "drainBatchSize", 500);
+        ReflectionTestUtils.setField(journal, "drainIntervalMs", drainIntervalMs);
+        ReflectionTestUtils.setField(journal, "drainMaxRetries", drainMaxRetries);
+        ReflectionTestUtils.setField(journal, "drainMaxBackoffMs", 20L);
+        ReflectionTestUtils.setField(journal, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(journal, "forceBytes", 1024);
+        ReflectionTestUtils.setField(journal, "forceIntervalMs", 100L);
+        journal.init();
+    }
+
+    private void reopen(int segmentSize, long drainIntervalMs) throws IOException {
+        journal.shutdown();
+        open(segmentSize, drainIntervalMs, Long.MAX_VALUE);
+    }
+
+    private void append(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            journal.append(message(i)).block(TIMEOUT);
+        }
+    }
+
+    private static RoomMessage message(int i) {
+        RoomMessage message = new RoomMessage();
+        message.setSender("u1");
+        message.setRoomId("R1");
+        message.setCompanyCode("A");
+        message.setContent("m" + i);
+        message.setTimestamp(1_700_000_000_000L + i);
+        return message;
+    }
+
+    private List<String> contents() {
+        return databaseClient.sql("SELECT content FROM room_message ORDER BY id")
+                .map(row -> row.get("content", String.class))
+                .all()
+                .collectList()
+                .block(TIMEOUT);
+    }
+
+    private List<Path> segments() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("segment-")).sorted().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Start of every complete record: [length][crc32][json], up to the first zero length
+    private static List<Integer> recordOffsets(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        List<Integer> offsets = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= buffer.limit() && buffer.getInt(position) > 0) {
+            offsets.add(position);
+            position += 8 + buffer.getInt(position);
+        }
+        return offsets;
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + TIMEOUT);
+            }
+            sleep(20);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
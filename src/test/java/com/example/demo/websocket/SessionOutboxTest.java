@@ -0,0 +1,213 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SessionOutboxTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final StubWebSocketSession session = new StubWebSocketSession();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    @Test
+    void framesWithinTheBatchWindowLeaveAsOneArrayFrame() {
+        SessionOutbox outbox = batching(10, Duration.ofMillis(200));
+        Sinks.Many<OutboundFrame> source = Sinks.many().unicast().onBackpressureBuffer();
+        Received received = Received.unbounded(outbox.relay(source.asFlux()));
+
+        // An idle session gets the first frame at once, the ones right behind it wait for the window
+        source.tryEmitNext(frame(1));
+        source.tryEmitNext(frame(2));
+        source.tryEmitNext(frame(3));
+        source.tryEmitNext(frame(4));
+
+        await(() -> received.texts().size() == 2);
+        assertEquals(List.of("{\"n\":1}", "[{\"n\":2},{\"n\":3},{\"n\":4}]"), received.texts());
+        assertEquals(2, meterRegistry.get("batch.size").summary().count());
+        assertEquals(4, meterRegistry.get("batch.size").summary().totalAmount());
+    }
+
+    @Test
+    void fullBatchLeavesWithoutWaitingForTheWindow() {
+        SessionOutbox outbox = batching(3, Duration.ofHours(1));
+        Sinks.Many<OutboundFrame> source = Sinks.many().unicast().onBackpressureBuffer();
+        Received received = Received.unbounded(outbox.relay(source.asFlux()));
+
+        for (int i = 1; i <= 4; i++) {
+            source.tryEmitNext(frame(i));
+        }
+
+        await(() -> received.texts().size() == 2);
+        assertEquals(List.of("{\"n\":1}", "[{\"n\":2},{\"n\":3},{\"n\":4}]"), received.texts());
+    }
+
+    @Test
+    void dropOldestKeepsTheNewestFramesOfAFullOutbox() {
+        SessionOutbox outbox = outbox(2, SessionOutbox.OverflowPolicy.DROP_OLDEST, 100);
+        Received received = Received.paused(outbox.relay(Flux.never()));
+
+        for (int i = 1; i <= 4; i++) {
+            outbox.offer(frame(i));
+        }
+        assertEquals(2, outbox.depth());
+        received.request(10);
+
+        assertEquals(List.of("{\"n\":3}", "{\"n\":4}"), received.texts());
+        assertEquals(2, outbox.getDropped());
+        assertEquals(2, meterRegistry.get("dropped").counter().count());
+        assertNull(session.closeStatus.get());
+    }
+
+    @Test
+    void coalesceReplacesTheQueuedFrameWithTheSameKey() {
+        SessionOutbox outbox = outbox(2, SessionOutbox.OverflowPolicy.COALESCE, 100);
+        Received received = Received.paused(outbox.relay(Flux.never()));
+
+        outbox.offer(frame(1, "a"));
+        outbox.offer(frame(2, "b"));
+        outbox.offer(frame(3, "a"));
+        received.request(10);
+
+        assertEquals(List.of("{\"n\":2}", "{\"n\":3}"), received.texts());
+    }
+
+    @Test
+    void disconnectClosesTheSessionAfterMaxOverflows() {
+        SessionOutbox outbox = outbox(1, SessionOutbox.OverflowPolicy.DISCONNECT, 2);
+        Received received = Received.paused(outbox.relay(Flux.never()));
+
+        outbox.offer(frame(1));
+        outbox.offer(frame(2));
+        assertNull(session.closeStatus.get());
+        outbox.offer(frame(3));
+        outbox.offer(frame(4));
+        received.request(10);
+
+        assertEquals(SessionOutbox.SLOW_CONSUMER, session.closeStatus.get());
+        assertEquals(List.of("{\"n\":1}"), received.texts());
+        assertEquals(2, outbox.getOverflows());
+    }
+
+    @Test
+    void failedSourceClosesTheSessionForAResume() {
+        SessionOutbox outbox = outbox(8, SessionOutbox.OverflowPolicy.DROP_OLDEST, 100);
+        Sinks.Many<OutboundFrame> source = Sinks.many().unicast().onBackpressureBuffer();
+        Received received = Received.unbounded(outbox.relay(source.asFlux()));
+
+        source.tryEmitNext(frame(1));
+        source.tryEmitError(new IllegalStateException("Resume buffer overflowed"));
+
+        assertEquals(List.of("{\"n\":1}"), received.texts());
+        assertEquals(SessionOutbox.RESUME_REQUIRED, session.closeStatus.get());
+    }
+
+    @Test
+    void cancellingTheRelayCancelsTheSourceAndReleasesTheOutbox() {
+        SessionOutbox outbox = outbox(8, SessionOutbox.OverflowPolicy.DROP_OLDEST, 100);
+        AtomicInteger cancelled = new AtomicInteger();
+        Received received = Received.paused(outbox.relay(Flux.<OutboundFrame>never().doOnCancel(cancelled::incrementAndGet)));
+        outbox.offer(frame(1));
+
+        received.cancel();
+
+        assertEquals(1, cancelled.get());
+        assertEquals(1, closed.get());
+        assertEquals(0, outbox.depth());
+    }
+
+    private SessionOutbox outbox(int capacity, SessionOutbox.OverflowPolicy policy, int maxOverflows) {
+        return new SessionOutbox(session, "chat", capacity, policy, maxOverflows, meterRegistry.counter("dropped"),
+                closed::incrementAndGet);
+    }
+
+    private SessionOutbox batching(int maxBatch, Duration window) {
+        DistributionSummary batchSizes = DistributionSummary.builder("batch.size").register(meterRegistry);
+        Counter dropped = meterRegistry.counter("dropped");
+        return new SessionOutbox(session, "chat", 256, SessionOutbox.OverflowPolicy.DROP_OLDEST, 100, dropped,
+                closed::incrementAndGet, maxBatch, window, batchSizes);
+    }
+
+    private static OutboundFrame frame(int n) {
+        return frame(n, null);
+    }
+
+    private static OutboundFrame frame(int n, String coalesceKey) {
+        return new OutboundFrame("u1", true, ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8), coalesceKey);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + TIMEOUT);
+            }
+            sleep(20);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The session's send pipeline: frames rendered as a JSON client receives them, requested on demand
+    private static final class Received extends BaseSubscriber<OutboundFrame> {
+
+        private final List<String> texts = new CopyOnWriteArrayList<>();
+        private final long initialRequest;
+
+        private Received(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        static Received unbounded(Flux<OutboundFrame> frames) {
+            Received received = new Received(Long.MAX_VALUE);
+            frames.subscribe(received);
+            return received;
+        }
+
+        static Received paused(Flux<OutboundFrame> frames) {
+            Received received = new Received(0);
+            frames.subscribe(received);
+            return received;
+        }
+
+        List<String> texts() {
+            return texts;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        protected void hookOnNext(OutboundFrame frame) {
+            texts.add(frame.toMessage(new StubWebSocketSession()).getPayloadAsText());
+        }
+    }
+}
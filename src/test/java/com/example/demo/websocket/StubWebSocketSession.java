@@ -0,0 +1,93 @@
+package com.example.demo.websocket;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.HandshakeInfo;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A session without a connection: buffers come from the default factory and {@code close} only records
+ * the status, for tests that drive an outbox or codec directly.
+ */
+final class StubWebSocketSession implements WebSocketSession {
+
+    final AtomicReference<CloseStatus> closeStatus = new AtomicReference<>();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    @Override
+    public String getId() {
+        return "s1";
+    }
+
+    @Override
+    public HandshakeInfo getHandshakeInfo() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataBufferFactory bufferFactory() {
+        return DefaultDataBufferFactory.sharedInstance;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Flux<WebSocketMessage> receive() {
+        return Flux.never();
+    }
+
+    @Override
+    public Mono<Void> send(Publisher<WebSocketMessage> messages) {
+        return Mono.empty();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return closeStatus.get() == null;
+    }
+
+    @Override
+    public Mono<Void> close(CloseStatus status) {
+        return Mono.fromRunnable(() -> closeStatus.compareAndSet(null, status));
+    }
+
+    @Override
+    public Mono<CloseStatus> closeStatus() {
+        return Mono.justOrEmpty(closeStatus.get());
+    }
+
+    @Override
+    public WebSocketMessage textMessage(String payload) {
+        return new WebSocketMessage(WebSocketMessage.Type.TEXT, bufferFactory().wrap(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public WebSocketMessage binaryMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return new WebSocketMessage(WebSocketMessage.Type.BINARY, payloadFactory.apply(bufferFactory()));
+    }
+
+    @Override
+    public WebSocketMessage pingMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return new WebSocketMessage(WebSocketMessage.Type.PING, payloadFactory.apply(bufferFactory()));
+    }
+
+    @Override
+    public WebSocketMessage pongMessage(Function<DataBufferFactory, DataBuffer> payloadFactory) {
+        return new WebSocketMessage(WebSocketMessage.Type.PONG, payloadFactory.apply(bufferFactory()));
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.demo.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenBucketTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 10 tokens per second: one every 100 ms, 5 at once
+    private final TokenBucket bucket = new TokenBucket(10, 5);
+
+    @Test
+    void fullBucketGivesBurstThenRefuses() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.acquire(0, 0));
+        }
+        assertEquals(-1, bucket.acquire(0, 0));
+    }
+
+    @Test
+    void refillsOneTokenPerInterval() {
+        drain(0);
+        assertEquals(-1, bucket.acquire(99 * MS, 0));
+        assertEquals(0, bucket.acquire(100 * MS, 0));
+        assertEquals(-1, bucket.acquire(100 * MS, 0));
+        assertEquals(0, bucket.acquire(350 * MS, 0));
+        assertEquals(0, bucket.acquire(350 * MS, 0));
+        assertEquals(-1, bucket.acquire(350 * MS, 0));
+    }
+
+    @Test
+    void waitsForTheNextTokenWithinMaxWait() {
+        drain(0);
+        assertEquals(100 * MS, bucket.acquire(0, 150 * MS));
+        assertEquals(-1, bucket.acquire(0, 150 * MS));
+        assertEquals(200 * MS, bucket.acquire(0, 200 * MS));
+    }
+
+    @Test
+    void refusedAcquireTakesNothing() {
+        drain(0);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(-1, bucket.acquire(0, 0));
+        }
+        assertEquals(0, bucket.acquire(100 * MS, 0));
+    }
+
+    @Test
+    void refundReturnsTheToken() {
+        drain(0);
+        bucket.refund();
+        assertEquals(0, bucket.acquire(0, 0));
+        assertEquals(-1, bucket.acquire(0, 0));
+    }
+
+    @Test
+    void clockJumpingForwardRefillsNoMoreThanBurst() {
+        drain(0);
+        long later = TimeUnit.HOURS.toNanos(1);
+        drain(later);
+        assertEquals(-1, bucket.acquire(later, 0));
+    }
+
+    @Test
+    void clockJumpingBackwardCreatesNoTokens() {
+        long now = TimeUnit.SECONDS.toNanos(10);
+        drain(now);
+        assertEquals(-1, bucket.acquire(now - TimeUnit.SECONDS.toNanos(1), 0));
+        assertEquals(-1, bucket.acquire(now, 0));
+        assertEquals(0, bucket.acquire(now + 100 * MS, 0));
+    }
+
+    @Test
+    void sharedByConcurrentCallersWithoutOvergranting() throws InterruptedException {
+        TokenBucket shared = new TokenBucket(1, 1000);
+        int[] granted = new int[4];
+        Thread[] threads = new Thread[granted.length];
+        for (int t = 0; t < threads.length; t++) {
+            int index = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    if (shared.acquire(0, 0) == 0) {
+                        granted[index]++;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int total = 0;
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            total += granted[t];
+        }
+        assertEquals(1000, total);
+    }
+
+    private void drain(long now) {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, bucket.acquire(now, 0));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.demo.websocket;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopicHubTest {
+
+    private static final String TOPIC = "C0";
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private EventLoopGroup eventLoops;
+
+    @BeforeEach
+    void setUp() {
+        eventLoops = new DefaultEventLoopGroup(1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventLoops.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+    }
+
+    @Test
+    void resumeWithinTheReplayBufferSendsOnlyMissedFramesThenLiveOnes() {
+        TopicHub hub = hub(8, Duration.ofHours(1), TopicHub.Fairness.DEFAULT);
+        List<OutboundFrame> seen = publishAndAwait(hub, 5);
+        long epoch = epoch(seen.get(0));
+
+        TopicHub.Resume resume = hub.resume(TOPIC, epoch, 2).block(TIMEOUT);
+        List<OutboundFrame> resumed = new CopyOnWriteArrayList<>();
+        resume.getFrames().subscribe(resumed::add);
+        publish(hub, 6);
+
+        assertTrue(resume.isComplete());
+        await(() -> resumed.size() == 4);
+        assertEquals(List.of(3L, 4L, 5L, 6L), resumed.stream().map(TopicHubTest::seq).toList());
+        resume.cancel();
+    }
+
+    @Test
+    void resumeFromTheLatestFrameSendsOnlyLiveOnes() {
+        TopicHub hub = hub(8, Duration.ofHours(1), TopicHub.Fairness.DEFAULT);
+        long epoch = epoch(publishAndAwait(hub, 3).get(0));
+
+        TopicHub.Resume resume = hub.resume(TOPIC, epoch, 3).block(TIMEOUT);
+        List<OutboundFrame> resumed = new CopyOnWriteArrayList<>();
+        resume.getFrames().subscribe(resumed::add);
+        publish(hub, 4);
+
+        assertTrue(resume.isComplete());
+        await(() -> resumed.size() == 1);
+        assertEquals(4L, seq(resumed.get(0)));
+        resume.cancel();
+    }
+
+    @Test
+    void resumeOlderThanTheReplayBufferReplaysAllOfItAndReportsTheGap() {
+        TopicHub hub = hub(4, Duration.ofHours(1), TopicHub.Fairness.DEFAULT);
+        long epoch = epoch(publishAndAwait(hub, 10).get(0));
+
+        TopicHub.Resume resume = hub.resume(TOPIC, epoch, 2).block(TIMEOUT);
+
+        assertFalse(resume.isComplete());
+        assertEquals(timestamp(7), resume.getOldestTimestamp());
+        assertEquals(List.of(7L, 8L, 9L, 10L), take(resume, 4));
+    }
+
+    @Test
+    void resumeFromAnotherEpochReplaysAllOfItAndReportsTheGap() {
+        TopicHub hub = hub(8, Duration.ofHours(1), TopicHub.Fairness.DEFAULT);
+        long epoch = epoch(publishAndAwait(hub, 3).get(0));
+
+        // Same seq, but counted in an epoch this topic never had
+        TopicHub.Resume resume = hub.resume(TOPIC, epoch - 1, 3).block(TIMEOUT);
+
+        assertFalse(resume.isComplete());
+        assertEquals(timestamp(1), resume.getOldestTimestamp());
+        assertEquals(List.of(1L, 2L, 3L), take(resume, 3));
+    }
+
+    @Test
+    void idleTopicIsEvictedAndComesBackInANewEpoch() {
+        TopicHub hub = hub(8, Duration.ofMillis(50), TopicHub.Fairness.DEFAULT);
+        List<OutboundFrame> seen = new CopyOnWriteArrayList<>();
+        Disposable subscription = hub.subscribe(TOPIC).subscribe(seen::add);
+        for (int seq = 1; seq <= 3; seq++) {
+            publish(hub, seq);
+        }
+        await(() -> seen.size() == 3);
+        long epoch = epoch(seen.get(0));
+
+        // Not evicted while it has a subscriber
+        sleep(200);
+        assertEquals(1, hub.topicCount());
+
+        subscription.dispose();
+        await(() -> hub.topicCount() == 0);
+
+        TopicHub.Resume resume = hub.resume(TOPIC, epoch, 3).block(TIMEOUT);
+        assertFalse(resume.isComplete());
+        assertEquals(Long.MAX_VALUE, resume.getOldestTimestamp());
+        assertEquals(1, hub.topicCount());
+
+        List<OutboundFrame> resumed = new CopyOnWriteArrayList<>();
+        resume.getFrames().subscribe(resumed::add);
+        publish(hub, 1);
+        await(() -> resumed.size() == 1);
+        assertNotEquals(epoch, epoch(resumed.get(0)));
+        assertEquals(1L, seq(resumed.get(0)));
+        resume.cancel();
+    }
+
+    @Test
+    void shedFramesAreNotCountedAsPublished() throws InterruptedException {
+        TopicHub hub = hub(8, Duration.ofHours(1), new TopicHub.Fairness(16, 2, 256, topic -> 1));
+        // Hold the shard's thread so published frames stay pending
+        CountDownLatch release = new CountDownLatch(1);
+        eventLoops.next().execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        for (int seq = 1; seq <= 5; seq++) {
+            publish(hub, seq);
+        }
+        release.countDown();
+
+        assertEquals(2, counter("websocket.hub.published"));
+        assertEquals(3, counter("websocket.hub.shed"));
+    }
+
+    @Test
+    void resumeBufferIsBoundedWhileNotRead() {
+        TopicHub hub = hub(8, Duration.ofHours(1), TopicHub.Fairness.DEFAULT);
+        TopicHub.Resume resume = hub.resume(TOPIC, 0, 0).block(TIMEOUT);
+
+        List<OutboundFrame> seen = new CopyOnWriteArrayList<>();
+        hub.subscribe(TOPIC).subscribe(seen::add);
+        int published = 1000;
+        for (int seq = 1; seq <= published; seq++) {
+            publish(hub, seq);
+        }
+        await(() -> seen.size() == published);
+
+        List<OutboundFrame> resumed = new CopyOnWriteArrayList<>();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        resume.getFrames().subscribe(resumed::add, error::set);
+
+        await(() -> error.get() != null);
+        assertInstanceOf(IllegalStateException.class, error.get());
+        assertTrue(resumed.size() < published, "buffered " + resumed.size());
+        // Frames before the overflow arrive in order
+        for (int i = 0; i < resumed.size(); i++) {
+            assertEquals(i + 1, seq(resumed.get(i)));
+        }
+    }
+
+    private TopicHub hub(int replayCapacity, Duration idleTopicTtl, TopicHub.Fairness fairness) {
+        return new TopicHub("test", 1, replayCapacity, idleTopicTtl, eventLoops, meterRegistry,
+                (topic, subscribed) -> { }, fairness);
+    }
+
+    private List<OutboundFrame> publishAndAwait(TopicHub hub, int count) {
+        List<OutboundFrame> seen = new CopyOnWriteArrayList<>();
+        hub.subscribe(TOPIC).subscribe(seen::add);
+        for (int seq = 1; seq <= count; seq++) {
+            publish(hub, seq);
+        }
+        await(() -> seen.size() == count);
+        return seen;
+    }
+
+    // The payload is "epoch:seq", and the timestamp is derived from the seq the test expects the hub to assign
+    private static void publish(TopicHub hub, long expectedSeq) {
+        hub.publish(TOPIC, timestamp(expectedSeq), (epoch, seq) ->
+                new OutboundFrame("sender", true, (epoch + ":" + seq).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static long timestamp(long seq) {
+        return 1_700_000_000_000L + seq;
+    }
+
+    private static List<Long> take(TopicHub.Resume resume, int count) {
+        List<Long> seqs = resume.getFrames().take(count).map(TopicHubTest::seq).collectList().block(TIMEOUT);
+        resume.cancel();
+        return seqs;
+    }
+
+    private static long epoch(OutboundFrame frame) {
+        return Long.parseLong(new String(frame.payload(), StandardCharsets.UTF_8).split(":")[0]);
+    }
+
+    private static long seq(OutboundFrame frame) {
+        return Long.parseLong(new String(frame.payload(), StandardCharsets.UTF_8).split(":")[1]);
+    }
+
+    private double counter(String name) {
+        return meterRegistry.get(name).tag("hub", "test").counter().count();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("condition not met within " + TIMEOUT);
+            }
+            sleep(5);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
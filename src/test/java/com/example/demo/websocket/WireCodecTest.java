@@ -0,0 +1,121 @@
+package com.example.demo.websocket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class WireCodecTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private final StubWebSocketSession session = new StubWebSocketSession();
+    private final WireCodec codec = codec();
+
+    @Test
+    void chatMessageSurvivesACborRoundTrip() throws IOException {
+        ChatMessage message = chatMessage("hello");
+
+        WebSocketMessage frame = OutboundFrame.encode(objectMapper, message, "u1", true).toMessage(session, WireFormat.CBOR);
+
+        assertEquals(WebSocketMessage.Type.BINARY, frame.getType());
+        assertEquals(message, codec.read(WireFormat.CBOR, frame, ChatMessage.class));
+    }
+
+    @Test
+    void roomMessageSurvivesACborRoundTrip() throws IOException {
+        RoomMessage message = new RoomMessage();
+        message.setId(7);
+        message.setSender("u1");
+        message.setContent("xin chào");
+        message.setRoomId("R1");
+        message.setCompanyCode("A");
+        message.setTimestamp(1_700_000_000_000L);
+        message.setEpoch(3L);
+        message.setSeq(42L);
+
+        WebSocketMessage frame = OutboundFrame.encode(objectMapper, message, "u1", true).toMessage(session, WireFormat.CBOR);
+
+        assertEquals(message, codec.read(WireFormat.CBOR, frame, RoomMessage.class));
+    }
+
+    @Test
+    void cborFromAClientIsReadLikeTheSameJson() throws IOException {
+        ChatMessage message = chatMessage("hello");
+        WebSocketMessage fromClient = new WebSocketMessage(WebSocketMessage.Type.BINARY,
+                session.bufferFactory().wrap(cborMapper.writeValueAsBytes(message)));
+
+        assertEquals(message, codec.read(WireFormat.CBOR, fromClient, ChatMessage.class));
+    }
+
+    @Test
+    void batchBecomesAnIndefiniteLengthCborArray() throws IOException {
+        ChatMessage first = chatMessage("one");
+        ChatMessage second = chatMessage("two");
+        OutboundFrame batch = OutboundFrame.batch(List.of(
+                OutboundFrame.encode(objectMapper, first, "u1", true),
+                OutboundFrame.encode(objectMapper, second, "u1", true)));
+
+        byte[] bytes = bytes(batch.toMessage(session, WireFormat.CBOR));
+
+        assertEquals((byte) 0x9F, bytes[0]);
+        assertEquals((byte) 0xFF, bytes[bytes.length - 1]);
+        assertArrayEquals(new ChatMessage[]{first, second}, cborMapper.readValue(bytes, ChatMessage[].class));
+    }
+
+    @Test
+    void batchBecomesAJsonArray() throws IOException {
+        ChatMessage first = chatMessage("one");
+        ChatMessage second = chatMessage("two");
+        OutboundFrame batch = OutboundFrame.batch(List.of(
+                OutboundFrame.encode(objectMapper, first, "u1", true),
+                OutboundFrame.encode(objectMapper, second, "u1", true)));
+
+        WebSocketMessage frame = batch.toMessage(session, WireFormat.JSON);
+
+        assertEquals(WebSocketMessage.Type.TEXT, frame.getType());
+        assertArrayEquals(new ChatMessage[]{first, second}, objectMapper.readValue(frame.getPayloadAsText(), ChatMessage[].class));
+    }
+
+    @Test
+    void cborPayloadIsEncodedOnceAndShared() throws IOException {
+        OutboundFrame frame = OutboundFrame.encode(objectMapper, chatMessage("hello"), "u1", true);
+
+        assertSame(frame.payload(WireFormat.CBOR), frame.payload(WireFormat.CBOR));
+    }
+
+    private WireCodec codec() {
+        WireCodec codec = new WireCodec();
+        ReflectionTestUtils.setField(codec, "objectMapper", objectMapper);
+        codec.init();
+        return codec;
+    }
+
+    private static ChatMessage chatMessage(String content) {
+        ChatMessage message = new ChatMessage();
+        message.setId("12");
+        message.setSender("u1");
+        message.setContent(content);
+        message.setCompanyCode("A");
+        message.setTimestamp(1_700_000_000_000L);
+        message.setEpoch(1L);
+        message.setSeq(5L);
+        return message;
+    }
+
+    private static byte[] bytes(WebSocketMessage message) {
+        byte[] bytes = new byte[message.getPayload().readableByteCount()];
+        message.getPayload().read(bytes);
+        DataBufferUtils.release(message.getPayload());
+        return bytes;
+    }
+}